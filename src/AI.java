@@ -1,67 +1,253 @@
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Class used to model the set of belief states already visited and to keep track of their values (in order to avoid visiting multiple times the same states)
+ * Transposition table with a fixed capacity, used to keep track of the values of the belief states already visited (in order to avoid visiting multiple times the same states).
+ * Each entry records the depth of the search, the value, whether the value is exact or a bound, the best move found, and whether the value is approximate
+ * (found by a search with probability mass pruning) with a bound of its error.
+ * An entry is packed in a single long, and stored next to its key xored with the entry, so that an entry corrupted by a concurrent write is detected as a miss.
  */
-class ExploredSet{
-	TreeMap<BeliefState, Float> exploredSet;
+class TranspositionTable{
+	static final int EXACT = 1;
+	static final int LOWER = 2; // the value is a lower bound (the search failed high)
+	static final int UPPER = 3; // the value is an upper bound (the search failed low)
+	static final int ENTRY_BYTES = 16;
 
 	/**
-	 * construct an empty set
+	 * Policy used when an entry is stored in a bucket which is already used by another state
 	 */
-	public ExploredSet() {
-		this.exploredSet = new TreeMap<BeliefState, Float>();
+	enum Replacement {
+		DEPTH_PREFERRED, // buckets of two entries: one kept for the deepest search, one always replaced
+		ALWAYS_REPLACE // buckets of one entry, always replaced
 	}
 
+	private final long[] keys;
+	private final long[] entries;
+	private final int mask;
+	private final Replacement replacement;
+
 	/**
-	 * Search if a given state belongs to the explored set and returns its values if that is the case
-	 * @param state the state for which the search takes place
-	 * @return the value of the state if it belongs to the set, and null otherwise
+	 * construct an empty table using at most a given amount of memory
+	 * @param bytes memory budget of the table
+	 * @param replacement replacement policy of the table
 	 */
-	public Float get(BeliefState state) {
-		Entry<BeliefState, Float> entry = this.exploredSet.ceilingEntry(state);
-		if(entry == null || state.compareTo(entry.getKey()) != 0) {
-			return null;
+	public TranspositionTable(long bytes, Replacement replacement) {
+		long capacity = Long.highestOneBit(Math.max(2, Math.min(bytes / ENTRY_BYTES, 1L << 30)));
+		this.keys = new long[(int) capacity];
+		this.entries = new long[(int) capacity];
+		this.mask = (int) capacity - 1;
+		this.replacement = replacement;
+	}
+
+	/**
+	 * Search the entry of a given state
+	 * @param key hash of the state
+	 * @return the packed entry of the state, or 0 if the state is not in the table
+	 */
+	public long probe(long key) {
+		int index = this.index(key);
+		long entry = this.entries[index];
+		if(entry != 0 && (this.keys[index] ^ entry) == key)
+			return entry;
+		if(this.replacement == Replacement.DEPTH_PREFERRED) {
+			entry = this.entries[index + 1];
+			if(entry != 0 && (this.keys[index + 1] ^ entry) == key)
+				return entry;
 		}
-		return entry.getValue() * state.probaSum() / entry.getKey().probaSum();
+		return 0;
 	}
 
 	/**
-	 * Put a belief state and its corresponding value into the set
-	 * @param beliefState the belief state to be added
-	 * @param value the
+	 * Store the result of the search of a state
+	 * @param key hash of the state
+	 * @param depth remaining depth of the search
+	 * @param value value of the state
+	 * @param bound EXACT, LOWER or UPPER
+	 * @param move best move found, or -1
+	 * @param approximate true if the value was found by a search with probability mass pruning
+	 * @param error bound of the difference between the value and the one of a search without pruning, rounded up to an integer (at most 65535)
 	 */
-	public void put(BeliefState beliefState, float value) {
-		this.exploredSet.put(beliefState, value);
+	public void store(long key, int depth, float value, int bound, int move, boolean approximate, float error) {
+		this.store(key, TranspositionTable.pack(depth, value, bound, move, approximate, error));
+	}
+
+	/**
+	 * Store all the entries of this table in another table, in the order of the buckets
+	 * @param other the table receiving the entries
+	 */
+	public void copyTo(TranspositionTable other) {
+		for(int index = 0; index < this.entries.length; index++) {
+			long entry = this.entries[index];
+			if(entry != 0)
+				other.store(this.keys[index] ^ entry, entry);
+		}
+	}
+
+	private void store(long key, long entry) {
+		int depth = TranspositionTable.depth(entry);
+		int index = this.index(key);
+		if(this.replacement == Replacement.DEPTH_PREFERRED) {
+			long deepest = this.entries[index];
+			boolean sameKey = deepest != 0 && (this.keys[index] ^ deepest) == key;
+			if(!sameKey && deepest != 0 && TranspositionTable.depth(deepest) > depth)
+				index++;
+		}
+		this.keys[index] = key ^ entry;
+		this.entries[index] = entry;
+	}
+
+	public void clear() {
+		Arrays.fill(this.keys, 0);
+		Arrays.fill(this.entries, 0);
+	}
+
+	public int capacity() {
+		return this.entries.length;
+	}
+
+	private int index(long key) {
+		int index = (int) key & this.mask;
+		return this.replacement == Replacement.DEPTH_PREFERRED? index & ~1: index;
+	}
+
+	private static long pack(int depth, float value, int bound, int move, boolean approximate, float error) {
+		long errorBits = (long) Math.min(0xFFFF, Math.ceil(error));
+		return (Float.floatToIntBits(value) & 0xFFFFFFFFL) | ((long) (depth & 0xFF) << 32) | ((long) bound << 40) | ((long) (move + 1) << 42) | (approximate? 1L << 46: 0)
+				| errorBits << 47;
+	}
+
+	static float value(long entry) {
+		return Float.intBitsToFloat((int) entry);
+	}
+
+	static int depth(long entry) {
+		return (int) (entry >>> 32) & 0xFF;
+	}
+
+	static int bound(long entry) {
+		return (int) (entry >>> 40) & 3;
+	}
+
+	static int move(long entry) {
+		return (int) (entry >>> 42 & 0xF) - 1;
+	}
+
+	static boolean isApproximate(long entry) {
+		return (entry >>> 46 & 1) != 0;
+	}
+
+	static float error(long entry) {
+		return (int) (entry >>> 47) & 0xFFFF;
 	}
 }
 
 /**
- * Class used to store all possible results of performing an action at a given belief state
+ * Class used to store all possible results of performing an action at a given belief state.
+ * The results are indexed by percept in an open addressing hash table, and iterated in order of insertion.
  */
 class Results implements Iterable<BeliefState>{
-	TreeMap<String, BeliefState> results;
+	private long[] percepts;
+	private BeliefState[] results;
+	private int size;
+	private int[] table; // index + 1 of the result of each slot, 0 for an empty slot
 
 	public Results(){
-		this.results = new TreeMap<String, BeliefState>();
+		this.percepts = new long[4];
+		this.results = new BeliefState[4];
+		this.size = 0;
+		this.table = new int[8];
 	}
 
 	/**
 	 * Return the belief state of the result that correspond to a given percept
-	 * @param percept String that describe what is visible on the board for player 2
+	 * @param percept squares that are visible on the board for player 2 (see BeliefState.percept)
 	 * @return belief state corresponding percept, or null if such a percept is not possible
 	 */
-	public BeliefState get(String percept) {
-		return this.results.get(percept);
+	public BeliefState get(long percept) {
+		int mask = this.table.length - 1;
+		for(int slot = Results.slot(percept, mask); this.table[slot] != 0; slot = (slot + 1) & mask) {
+			if(this.percepts[this.table[slot] - 1] == percept)
+				return this.results[this.table[slot] - 1];
+		}
+		return null;
+	}
+
+	public void put(long percept, BeliefState state) {
+		int mask = this.table.length - 1;
+		int slot = Results.slot(percept, mask);
+		while(this.table[slot] != 0) {
+			if(this.percepts[this.table[slot] - 1] == percept) {
+				this.results[this.table[slot] - 1] = state;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if(this.size == this.percepts.length) {
+			this.percepts = Arrays.copyOf(this.percepts, 2 * this.size);
+			this.results = Arrays.copyOf(this.results, 2 * this.size);
+		}
+		this.percepts[this.size] = percept;
+		this.results[this.size++] = state;
+		this.table[slot] = this.size;
+		if(2 * this.size > this.table.length)
+			this.rehash();
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the total number of states of the belief states
+	 * @return number of states
+	 */
+	public int states() {
+		int states = 0;
+		for(int i = 0; i < this.size; i++) {
+			states += this.results[i].size();
+		}
+		return states;
+	}
+
+	/**
+	 * Returns the percept of the i-th result, in order of insertion
+	 */
+	long percept(int i) {
+		return this.percepts[i];
+	}
+
+	/**
+	 * Returns the belief state of the i-th result, in order of insertion
+	 */
+	BeliefState result(int i) {
+		return this.results[i];
 	}
 
-	public void put(String s, BeliefState state) {
-		this.results.put(s, state);
+	public boolean isEmpty() {
+		return this.size == 0;
 	}
 
 	public Iterator<BeliefState> iterator(){
-		return this.results.values().iterator();
+		return Arrays.asList(this.results).subList(0, this.size).iterator();
+	}
+
+	private void rehash() {
+		this.table = new int[2 * this.table.length];
+		int mask = this.table.length - 1;
+		for(int i = 0; i < this.size; i++) {
+			int slot = Results.slot(this.percepts[i], mask);
+			while(this.table[slot] != 0)
+				slot = (slot + 1) & mask;
+			this.table[slot] = i + 1;
+		}
+	}
+
+	private static int slot(long percept, int mask) {
+		return (int) GameState.mix(percept) & mask;
 	}
 }
 
@@ -69,39 +255,57 @@ class Results implements Iterable<BeliefState>{
  * Class used to represent a belief state i.e., a set of possible states the agent may be in
  */
 class BeliefState implements Comparable<BeliefState>, Iterable<GameState>{
-	private byte[] isVisible;
+	private static final int INITIAL_CAPACITY = 4;
+	private static final int PREDICT_CHUNK = Integer.getInteger("ai.predict.chunk", 256); // minimum number of states predicted by each task of a parallel prediction
+
+	private long visible; // visible squares, using the layout of the bitboards of GameState
 
-	private TreeSet<GameState> beliefState;
+	// states of the belief state, sorted by encoding (see GameState.key()), and their probabilities
+	private long[] states;
+	private float[] probas;
+	private int size;
+
+	// states added since the last merge, in order of insertion
+	private long[] pendingStates;
+	private float[] pendingProbas;
+	private int pendingSize;
 
 	private int played;
 
+	private long membersKey; // sum of the Zobrist keys of the states, independent of the order of insertion
+
 	public BeliefState() {
-		this.beliefState = new TreeSet<GameState>();
-		this.isVisible = new byte[6];
-		for(int i = 0; i < 6; i++) {
-			this.isVisible[i] = Byte.MIN_VALUE;
-		}
+		this.states = new long[INITIAL_CAPACITY];
+		this.probas = new float[INITIAL_CAPACITY];
+		this.size = 0;
+		this.pendingStates = new long[INITIAL_CAPACITY];
+		this.pendingProbas = new float[INITIAL_CAPACITY];
+		this.pendingSize = 0;
+		this.membersKey = 0;
+		this.visible = 0;
 		this.played = 0;
 	}
 
-	public BeliefState(byte[] isVisible, int played) {
+	public BeliefState(long visible, int played) {
 		this();
-		for(int i = 0; i < 6; i++) {
-			this.isVisible[i] = isVisible[i];
-		}
+		this.visible = visible;
 		this.played = played;
 	}
 
 	public void setStates(BeliefState beliefState) {
-		this.beliefState = beliefState.beliefState;
-		for(int i = 0; i < 6; i++) {
-			this.isVisible[i] = beliefState.isVisible[i];
-		}
+		beliefState.merge();
+		this.merge();
+		this.states = beliefState.states;
+		this.probas = beliefState.probas;
+		this.size = beliefState.size;
+		this.membersKey = beliefState.membersKey;
+		this.visible = beliefState.visible;
 		this.played = beliefState.played;
 	}
 
 	public boolean contains(GameState state) {
-		return this.beliefState.contains(state);
+		this.merge();
+		return Arrays.binarySearch(this.states, 0, this.size, state.key()) >= 0;
 	}
 
 	/**
@@ -109,16 +313,158 @@ class BeliefState implements Comparable<BeliefState>, Iterable<GameState>{
 	 * @return number of state
 	 */
 	public int size() {
-		return this.beliefState.size();
+		this.merge();
+		return this.size;
+	}
+
+	/**
+	 * Returns the encoding of the i-th state of the belief state (states are sorted by encoding)
+	 * @param i index of the state
+	 * @return encoding of the state (see GameState.key())
+	 */
+	long state(int i) {
+		this.merge();
+		return this.states[i];
+	}
+
+	/**
+	 * Returns the probability of the i-th state of the belief state
+	 * @param i index of the state
+	 * @return probability of the state
+	 */
+	float proba(int i) {
+		this.merge();
+		return this.probas[i];
+	}
+
+	void setProba(int i, float proba) {
+		this.merge();
+		this.probas[i] = proba;
+	}
+
+	/**
+	 * Returns a selector drawing the index of a state according to the probabilities of the states (POMCP and PIMC sample the belief state with it),
+	 * the states being equally likely if no probability is positive. Its alias table is already built, so it can be shared by threads drawing with their own generators.
+	 * @return the selector, whose weight of the index i is the probability of the i-th state (or 1)
+	 */
+	RandomSelector sampler() {
+		this.merge();
+		RandomSelector selector = new RandomSelector();
+		for(int i = 0; i < this.size; i++) {
+			selector.add(this.probas[i] > 0? this.probas[i]: 0);
+		}
+		if(selector.somme <= 0) {
+			selector = new RandomSelector();
+			for(int i = 0; i < this.size; i++) {
+				selector.add(1);
+			}
+		}
+		selector.prepare();
+		return selector;
 	}
 
 	public void add(GameState state) {
-		if(!this.beliefState.contains(state)) {
-			this.beliefState.add(state);
+		this.add(state.key(), state.proba());
+	}
+
+	/**
+	 * Add a state given by its encoding. If the state is already in the belief state, its probability is added to the one of the state.
+	 * The insertion is buffered and merged in bulk with the sorted states the next time the belief state is read.
+	 * @param state encoding of the state (see GameState.key())
+	 * @param proba probability of the state
+	 */
+	void add(long state, float proba) {
+		if(this.pendingSize == this.pendingStates.length) {
+			this.pendingStates = Arrays.copyOf(this.pendingStates, 2 * this.pendingSize);
+			this.pendingProbas = Arrays.copyOf(this.pendingProbas, 2 * this.pendingSize);
 		}
-		else {
-			GameState copy = this.beliefState.floor(state);
-			copy.addProba(state.proba());
+		this.pendingStates[this.pendingSize] = state;
+		this.pendingProbas[this.pendingSize] = proba;
+		this.pendingSize++;
+	}
+
+	/**
+	 * Add all the states of another belief state, in the order in which they were added to it
+	 * @param beliefState the belief state whose states are added
+	 */
+	void addAll(BeliefState beliefState) {
+		for(int i = 0; i < beliefState.size; i++) {
+			this.add(beliefState.states[i], beliefState.probas[i]);
+		}
+		for(int i = 0; i < beliefState.pendingSize; i++) {
+			this.add(beliefState.pendingStates[i], beliefState.pendingProbas[i]);
+		}
+	}
+
+	/**
+	 * Merge the buffered states with the sorted states. The probabilities of duplicate states are summed in order of insertion.
+	 */
+	private void merge() {
+		if(this.pendingSize == 0)
+			return;
+		BeliefState.sort(this.pendingStates, this.pendingProbas, this.pendingSize);
+		long[] mergedStates = new long[Math.max(INITIAL_CAPACITY, this.size + this.pendingSize)];
+		float[] mergedProbas = new float[mergedStates.length];
+		int i = 0, j = 0, n = 0;
+		while(i < this.size || j < this.pendingSize) {
+			long state;
+			float proba;
+			if(j == this.pendingSize || (i < this.size && this.states[i] <= this.pendingStates[j])) {
+				state = this.states[i];
+				proba = this.probas[i++];
+			}
+			else {
+				state = this.pendingStates[j];
+				proba = this.pendingProbas[j++];
+				this.membersKey += GameState.hashOf(state);
+			}
+			while(j < this.pendingSize && this.pendingStates[j] == state) {
+				proba += this.pendingProbas[j++];
+			}
+			mergedStates[n] = state;
+			mergedProbas[n++] = proba;
+		}
+		this.states = mergedStates;
+		this.probas = mergedProbas;
+		this.size = n;
+		this.pendingSize = 0;
+	}
+
+	/**
+	 * Stable merge sort of encoded states and their probabilities, by encoding
+	 */
+	private static void sort(long[] states, float[] probas, int n) {
+		if(n < 2)
+			return;
+		long[] tmpStates = new long[n];
+		float[] tmpProbas = new float[n];
+		for(int width = 1; width < n; width *= 2) {
+			for(int low = 0; low < n - width; low += 2 * width) {
+				int middle = low + width, high = Math.min(low + 2 * width, n);
+				if(states[middle - 1] <= states[middle])
+					continue;
+				int i = low, j = middle, k = low;
+				while(i < middle && j < high) {
+					if(states[j] < states[i]) {
+						tmpStates[k] = states[j];
+						tmpProbas[k++] = probas[j++];
+					}
+					else {
+						tmpStates[k] = states[i];
+						tmpProbas[k++] = probas[i++];
+					}
+				}
+				while(i < middle) {
+					tmpStates[k] = states[i];
+					tmpProbas[k++] = probas[i++];
+				}
+				while(j < high) {
+					tmpStates[k] = states[j];
+					tmpProbas[k++] = probas[j++];
+				}
+				System.arraycopy(tmpStates, low, states, low, high - low);
+				System.arraycopy(tmpProbas, low, probas, low, high - low);
+			}
 		}
 	}
 
@@ -128,107 +474,73 @@ class BeliefState implements Comparable<BeliefState>, Iterable<GameState>{
 	 */
 	public Results predict(){
 		if(this.turn()) {
-			Results tmstates = new Results();
-			for(GameState state: this.beliefState) {
-				RandomSelector rs = new RandomSelector();
-				ArrayList<Integer> listColumn = new ArrayList<Integer>();
-				ArrayList<Integer> listGameOver = new ArrayList<Integer>();
-				int minGameOver = Integer.MAX_VALUE;
-				for(int column = 0; column < 7; column++) {
-					if(!state.isFull(column)) {
-						GameState copy = state.copy();
-						copy.putPiece(column);
-						if(copy.isGameOver()) {
-							listColumn.clear();
-							listColumn.add(column);
-							rs = new RandomSelector();
-							rs.add(1);
-							break;
-						}
-						int nbrGameOver = 0;
-						for(int i = 0; i < 7; i++) {
-							if(!copy.isFull(i)) {
-								GameState copycopy = copy.copy();
-								copycopy.putPiece(i);
-								if(copycopy.isGameOver()) {
-									nbrGameOver++;
-								}
-							}
-						}
-						if(nbrGameOver == 0) {
-							rs.add(ProbabilisticOpponentAI.heuristicValue(state, column));
-							listColumn.add(column);
-						}
-						else {
-							if(minGameOver > nbrGameOver) {
-								minGameOver = nbrGameOver;
-								listGameOver.clear();
-								listGameOver.add(column);
-							}
-							else {
-								if(minGameOver == nbrGameOver) {
-									listGameOver.add(column);
-								}
-							}
-						}
-					}
+			this.merge();
+			if(this.size >= 2 * PREDICT_CHUNK && ForkJoinTask.inForkJoinPool()) {
+				return this.predictParallel();
+			}
+			return this.predict(0, this.size);
+		}
+		else {
+			return null;
+		}
+	}
+
+	/**
+	 * Compute the results of the move of the opponent in parallel: the states are split in chunks predicted by different tasks of the current fork-join pool,
+	 * and the results of the chunks are merged in order, so that the result is the same as the one of a sequential prediction.
+	 * @return an objet of class result containing all possible result of an action performed by the opponent
+	 */
+	private Results predictParallel() {
+		int chunks = Math.min(ForkJoinTask.getPool().getParallelism(), this.size / PREDICT_CHUNK);
+		List<ForkJoinTask<Results>> tasks = new ArrayList<ForkJoinTask<Results>>();
+		for(int chunk = 1; chunk < chunks; chunk++) {
+			int from = (int) ((long) this.size * chunk / chunks), to = (int) ((long) this.size * (chunk + 1) / chunks);
+			tasks.add(ForkJoinTask.adapt(() -> this.predict(from, to)).fork());
+		}
+		Results tmstates = this.predict(0, this.size / chunks);
+		for(ForkJoinTask<Results> task: tasks) {
+			Results chunkStates = task.join();
+			for(int i = 0; i < chunkStates.size(); i++) {
+				BeliefState bs = tmstates.get(chunkStates.percept(i));
+				if(bs == null) {
+					tmstates.put(chunkStates.percept(i), chunkStates.result(i));
 				}
-				int index = 0;
-				if(listColumn.isEmpty()) {
-					for(int column: listGameOver) {
-						listColumn.add(column);
-						rs.add(1);
-					}
+				else {
+					bs.addAll(chunkStates.result(i));
 				}
-				for(int column: listColumn) {
-					GameState copy = state.copy();
-					if(!copy.isFull(column)) {
-						byte[] tab = new byte[6];
-						for(int i = 0; i < 6; i++) {
-							tab[i] = this.isVisible[i];
-						}
-						copy.putPiece(column);
-						if(copy.isGameOver()) {
-							for(int i = 0; i < 6; i++) {
-								for(int j = 0; j < 7; j++) {
-									BeliefState.setVisible(i, j, true, tab);
-								}
-							}
-						}
-						else {
-							boolean isVisible = copy.isGameOver() || copy.isFull(column);
-							BeliefState.setVisible(5, column, isVisible, tab);
-							for(int row = 4; row > -1; row--) {
-								isVisible = isVisible || copy.content(row, column) == 2;
-								BeliefState.setVisible(row, column, isVisible, tab);
-							}
-						}
-						String s = "";
-						char c = 0;
-						for(int i = 0; i < 6; i++) {
-							int val = tab[i] + 128;
-							s += ((char)(val % 128));
-							c += (val / 128) << i;
-						}
-						s += c;
-						copy.multProba(rs.probability(index++));
-						BeliefState bs = tmstates.get(s);
-						if(bs!= null) {
-							bs.add(copy);
-						}
-						else {
-							bs = new BeliefState(tab, this.played + 1);
-							bs.add(copy);
-							tmstates.put(s, bs);
-						}
+			}
+		}
+		return tmstates;
+	}
+
+	/**
+	 * Compute the possible results of the move of the opponent for a range of states of the belief state
+	 * @param from index of the first state
+	 * @param to index after the last state
+	 * @return an objet of class result containing all possible result of an action performed by the opponent in these states
+	 */
+	private Results predict(int from, int to){
+		Results tmstates = new Results();
+		GameState state = new GameState();
+		for(int member = from; member < to; member++) {
+			state.load(this.states[member]);
+			state.setProba(this.probas[member]);
+			OpponentPolicy policy = OpponentPolicy.of(state);
+			for(int column = 0; column < 7; column++) {
+				if(policy.isMove(column)) {
+					state.putPiece(column);
+					long percept = BeliefState.percept(this.visible, state, column);
+					BeliefState bs = tmstates.get(percept);
+					if(bs == null) {
+						bs = new BeliefState(percept, this.played + 1);
+						tmstates.put(percept, bs);
 					}
+					bs.add(state.key(), state.proba() * policy.probability(column));
+					state.undoPiece(column);
 				}
 			}
-			return tmstates;
-		}
-		else {
-			return null;
 		}
+		return tmstates;
 	}
 
 	/**
@@ -238,46 +550,19 @@ class BeliefState implements Comparable<BeliefState>, Iterable<GameState>{
 	 */
 	public Results putPiecePlayer(int column){
 		if(!this.turn()) {
+			this.merge();
 			Results tmstates = new Results();
-			for(GameState state: this.beliefState) {
-				GameState copy = state.copy();
-				byte[] tab = new byte[6];
-				for(int i = 0; i < 6; i++) {
-					tab[i] = this.isVisible[i];
-				}
-				copy.putPiece(column);
-				if(copy.isGameOver()) {
-					for(int i = 0; i < 6; i++) {
-						for(int j = 0; j < 7; j++) {
-							BeliefState.setVisible(i, j, true, tab);
-						}
-					}
-				}
-				else {
-					boolean isVisible = copy.isFull(column);
-					BeliefState.setVisible(5, column, isVisible, tab);
-					for(int row = 4; row > -1; row--) {
-						isVisible = isVisible || copy.content(row, column) == 2;
-						BeliefState.setVisible(row, column, isVisible, tab);
-					}
-				}
-				String s = "";
-				char c = 0;
-				for(int i = 0; i < 6; i++) {
-					int val = tab[i] + 128;
-					s += ((char)(val % 128));
-					c += (val / 128) << i;
-				}
-				s += c;
-				BeliefState bs = tmstates.get(s);
-				if(bs!= null) {
-					bs.add(copy);
-				}
-				else {
-					bs = new BeliefState(tab, this.played + 1);
-					bs.add(copy);
-					tmstates.put(s, bs);
+			GameState state = new GameState();
+			for(int member = 0; member < this.size; member++) {
+				state.load(this.states[member]);
+				state.putPiece(column);
+				long percept = BeliefState.percept(this.visible, state, column);
+				BeliefState bs = tmstates.get(percept);
+				if(bs == null) {
+					bs = new BeliefState(percept, this.played + 1);
+					tmstates.put(percept, bs);
 				}
+				bs.add(state.key(), this.probas[member]);
 			}
 			return tmstates;
 		}
@@ -288,34 +573,21 @@ class BeliefState implements Comparable<BeliefState>, Iterable<GameState>{
 	}
 
 	public static BeliefState filter(Results beliefStates, GameState state) {
-		byte tab[] = new byte[6];
-		for(int i = 0; i < 6; i++) {
-			tab[i] = Byte.MIN_VALUE;
+		long percept = GameState.BOARD_MASK;
+		if(!state.isGameOver()) {
+			percept = 0;
+			for(int column = 0; column < 7; column++) {
+				percept |= BeliefState.visibleSquares(state, column);
+			}
 		}
-		for(int column = 0; column < 7; column++) {
-			boolean isVisible = state.isGameOver() || state.isFull(column);
-			BeliefState.setVisible(5, column, isVisible, tab);
-			for(int row = 4; row > -1; row--) {
-				isVisible = isVisible || (state.content(row, column) == 2);
-				BeliefState.setVisible(row, column, isVisible, tab);
-			}
-		}
-		String s = "";
-		char c = 0;
-		for(int i = 0; i < 6; i++) {
-			int val = tab[i] + 128;
-			s += ((char)(val % 128));
-			c += (val / 128) << i;
-		}
-		s += c;
-		BeliefState beliefState = beliefStates.get(s);
-		RandomSelector rs = new RandomSelector();
-		for(GameState st: beliefState.beliefState) {
-			rs.add(st.proba());
-		}
-		int i = 0;
-		for(GameState st: beliefState.beliefState) {
-			st.setProba(rs.probability(i++));
+		BeliefState beliefState = beliefStates.get(percept);
+		beliefState.merge();
+		float sum = 0; // same float sum as RandomSelector.probability
+		for(int i = 0; i < beliefState.size; i++) {
+			sum += beliefState.probas[i];
+		}
+		for(int i = 0; i < beliefState.size; i++) {
+			beliefState.probas[i] = beliefState.probas[i] / sum;
 		}
 		return beliefState;
 	}
@@ -325,19 +597,37 @@ class BeliefState implements Comparable<BeliefState>, Iterable<GameState>{
 	 * @return copy of the belief state
 	 */
 	public BeliefState copy() {
+		this.merge();
 		BeliefState bs = new BeliefState();
-		for(GameState state: this.beliefState) {
-			bs.add(state.copy());
-		}
-		for(int i = 0; i < 6; i++) {
-			bs.isVisible[i] = this.isVisible[i];
-		}
+		bs.states = Arrays.copyOf(this.states, Math.max(INITIAL_CAPACITY, this.size));
+		bs.probas = Arrays.copyOf(this.probas, bs.states.length);
+		bs.size = this.size;
+		bs.membersKey = this.membersKey;
+		bs.visible = this.visible;
 		bs.played = this.played;
 		return bs;
 	}
 
+	/**
+	 * Iterate over the states of the belief state. Each state is decoded in a new GameState, so modifying it does not modify the belief state.
+	 */
 	public Iterator<GameState> iterator(){
-		return this.beliefState.iterator();
+		this.merge();
+		return new Iterator<GameState>() {
+			private int next = 0;
+
+			public boolean hasNext() {
+				return this.next < BeliefState.this.size;
+			}
+
+			public GameState next() {
+				if(!this.hasNext())
+					throw new NoSuchElementException();
+				GameState state = new GameState(BeliefState.this.states[this.next], BeliefState.this.probas[this.next]);
+				this.next++;
+				return state;
+			}
+		};
 	}
 
 	/**
@@ -347,9 +637,9 @@ class BeliefState implements Comparable<BeliefState>, Iterable<GameState>{
 	public ArrayList<Integer> getMoves(){
 		if(!this.isGameOver()) {
 			ArrayList<Integer> moves = new ArrayList<Integer>();
-			GameState state = this.beliefState.first();
+			long state = this.states[0];
 			for(int i = 0; i < 7; i++) {
-				if(!state.isFull(i))
+				if(!GameState.isFull(state, i))
 					moves.add(i);
 			}
 			return moves;
@@ -359,36 +649,71 @@ class BeliefState implements Comparable<BeliefState>, Iterable<GameState>{
 		}
 	}
 
+	/**
+	 * Returns the number of pieces played since the beginning of the game
+	 * @return number of moves played
+	 */
+	public int played() {
+		return this.played;
+	}
+
+	/**
+	 * Returns the visible squares, using the layout of the bitboards of GameState
+	 * @return the mask of the visible squares
+	 */
+	long visible() {
+		return this.visible;
+	}
+
 	/**
 	 * Provide information about the next player to play
 	 * @return true if the next to play is the opponent, and false otherwise
 	 */
 	public boolean turn() {
-		return this.beliefState.first().turn();
+		this.merge();
+		return GameState.turn(this.states[0]);
 	}
 
 	public boolean isVisible(int row, int column) {
-		int pos = row * 7 + column;
-		int index = pos / 8;
-		pos = pos % 8;
-		return ((this.isVisible[index] + 128) >> pos) % 2 == 1;
+		return ((this.visible >>> (column * GameState.H1 + row)) & 1) != 0;
 	}
 
 	public void setVisible(int row, int column, boolean val) {
-		int pos = row * 7 + column;
-		int index = pos / 8;
-		pos = pos % 8;
-		int delta = ((val? 1: 0) - (this.isVisible(row, column)? 1: 0)) << pos;
-		this.isVisible[index] = (byte) (this.isVisible[index] + delta);
+		long bit = 1L << (column * GameState.H1 + row);
+		if(val)
+			this.visible |= bit;
+		else
+			this.visible &= ~bit;
 	}
 
-	public static void setVisible(int row, int column, boolean val, byte[] tab) {
-		int pos = row * 7 + column;
-		int index = pos / 8;
-		pos = pos % 8;
-		int posValue = tab[index] + 128;
-		int delta = ((val? 1: 0) - ((posValue >> pos) % 2)) << pos;
-		tab[index] = (byte) (posValue + delta - 128);
+	/**
+	 * Compute the percept obtained after a piece has been played in a given column, i.e., the squares visible by the player.
+	 * The percept is used as a key to group the resulting states into belief states.
+	 * @param visible the squares visible before the move
+	 * @param state the state after the move
+	 * @param column the column where the piece was played
+	 * @return the visible squares after the move
+	 */
+	static long percept(long visible, GameState state, int column) {
+		if(state.isGameOver())
+			return GameState.BOARD_MASK;
+		return (visible & ~GameState.columnMask(column)) | BeliefState.visibleSquares(state, column);
+	}
+
+	/**
+	 * Compute the visible squares of a column: all the squares of a full column, and otherwise the squares below the highest red piece
+	 * @param state the state of the game
+	 * @param column the index of the column
+	 * @return the visible squares of the column
+	 */
+	static long visibleSquares(GameState state, int column) {
+		long columnMask = GameState.columnMask(column);
+		if(state.isFull(column))
+			return columnMask;
+		long red = state.red() & columnMask;
+		if(red == 0)
+			return 0;
+		return (Long.highestOneBit(red) << 1) - Long.lowestOneBit(columnMask);
 	}
 
 	/**
@@ -396,8 +721,9 @@ class BeliefState implements Comparable<BeliefState>, Iterable<GameState>{
 	 * @return true if the game is over, and false otherwise
 	 */
 	public boolean isGameOver() {
-		for(GameState state: this.beliefState) {
-			if(!state.isGameOver()) {
+		this.merge();
+		for(int i = 0; i < this.size; i++) {
+			if(!GameState.isGameOver(this.states[i])) {
 				return false;
 			}
 		}
@@ -409,65 +735,121 @@ class BeliefState implements Comparable<BeliefState>, Iterable<GameState>{
 	 * @return
 	 */
 	public boolean isFull() {
-		return this.beliefState.first().isFull();
+		this.merge();
+		for(int column = 0; column < 7; column++) {
+			if(!GameState.isFull(this.states[0], column))
+				return false;
+		}
+		return true;
 	}
 
 
 	public void restart() {
-		this.beliefState = new TreeSet<GameState>();
-		this.isVisible = new byte[6];
-		for(int i = 0; i < 6; i++) {
-			this.isVisible[i] = Byte.MIN_VALUE;
-		}
+		this.states = new long[INITIAL_CAPACITY];
+		this.probas = new float[INITIAL_CAPACITY];
+		this.size = 0;
+		this.pendingSize = 0;
+		this.membersKey = 0;
+		this.visible = 0;
 		this.played = 0;
 	}
 
 	public String toString() {
-		String s = "BeliefState: size = " + this.beliefState.size() + " played = " + this.played + "\n";
+		String s = "BeliefState: size = " + this.size() + " played = " + this.played + "\n";
 		for(int row = 5; row > -1; row--) {
 			for(int column = 0; column < 7; column++) {
 				s += this.isVisible(row, column)? "1": "0";
 			}
 			s += "\n";
 		}
-		for(GameState state:this.beliefState) {
+		for(GameState state: this) {
 			s += state.toString() + "\n";
 		}
 		return s;
 	}
 
+	/**
+	 * Returns a hash of the belief state combining the Zobrist keys of its states (independently of their order), the visible squares and the number of moves played.
+	 * The probabilities of the states are not part of the key.
+	 * @return a 64 bits hash of the belief state
+	 */
+	public long key() {
+		this.merge();
+		return this.membersKey + GameState.mix(this.visible * 64 + this.played);
+	}
+
+	/**
+	 * Returns a hash identifying the belief state up to a scaling of its probabilities: the states, the visible squares, and the probabilities
+	 * normalized to sum to 1 and quantized to 1e-6. Two belief states whose normalized probabilities differ by less than the quantum usually get the same key.
+	 * It is used to index the transposition table, and computed without copying the belief state.
+	 * @return a 64 bits hash of the belief state and of its normalized probabilities
+	 */
+	public long canonicalKey() {
+		long key = this.key();
+		float sum = 0;
+		for(int i = 0; i < this.size; i++) {
+			sum += this.probas[i];
+		}
+		for(int i = 0; i < this.size; i++) {
+			long quantum = Math.round(this.probas[i] / sum * 1e6);
+			key += GameState.mix(GameState.mix(this.states[i]) ^ quantum);
+		}
+		return key;
+	}
+
 	public int compareTo(BeliefState bs) {
+		long key = this.key(), otherKey = bs.key();
+		if(key != otherKey)
+			return Long.compare(key, otherKey);
 		if(this.played != bs.played)
 			return this.played > bs.played? 1: -1;
-		for(int i = 0; i < 6; i++) {
-			if(this.isVisible[i] != bs.isVisible[i])
-				return this.isVisible[i] > bs.isVisible[i]? 1: -1;
-		}
-		if(this.beliefState.size() != bs.beliefState.size()) {
-			return this.beliefState.size() > bs.beliefState.size()? 1: -1;
+		if(this.visible != bs.visible)
+			return Long.compare(this.visible, bs.visible);
+		if(this.size != bs.size) {
+			return this.size > bs.size? 1: -1;
 		}
-		Iterator<GameState> iter = bs.beliefState.iterator();
-		for(GameState next: this.beliefState) {
-			GameState otherNext = iter.next();
-			int comp = next.compareTo(otherNext);
-			if(comp != 0)
-				return comp;
+		for(int i = 0; i < this.size; i++) {
+			if(this.states[i] != bs.states[i])
+				return Long.compare(this.states[i], bs.states[i]);
 		}
-		iter = bs.beliefState.iterator();
 		float sum1 = this.probaSum(), sum2 = bs.probaSum();
-		for(GameState next: this.beliefState) {
-			GameState otherNext = iter.next();
-			if(Math.abs(next.proba() * sum1 - otherNext.proba() * sum2) > 0.001) {
-				return next.proba() > otherNext.proba()? 1: -1;
+		for(int i = 0; i < this.size; i++) {
+			if(Math.abs(this.probas[i] * sum1 - bs.probas[i] * sum2) > 0.001) {
+				return this.probas[i] > bs.probas[i]? 1: -1;
 			}
 		}
 		return 0;
 	}
 
+	/**
+	 * Returns the belief state without its states whose probability is lower than a threshold, keeping at least the most probable state
+	 * @param minProba the smallest probability of the states kept
+	 * @return this belief state if no state is removed, and otherwise a new belief state with the same visible squares
+	 */
+	BeliefState prune(float minProba) {
+		this.merge();
+		int kept = 0, mostProbable = 0;
+		for(int i = 0; i < this.size; i++) {
+			if(this.probas[i] >= minProba)
+				kept++;
+			if(this.probas[i] > this.probas[mostProbable])
+				mostProbable = i;
+		}
+		if(kept == this.size)
+			return this;
+		BeliefState pruned = new BeliefState(this.visible, this.played);
+		for(int i = 0; i < this.size; i++) {
+			if(this.probas[i] >= minProba || (kept == 0 && i == mostProbable))
+				pruned.add(this.states[i], this.probas[i]);
+		}
+		return pruned;
+	}
+
 	public float probaSum() {
+		this.merge();
 		float sum = 0;
-		for(GameState state: this.beliefState) {
-			sum += state.proba();
+		for(int i = 0; i < this.size; i++) {
+			sum += this.probas[i];
 		}
 		return sum;
 	}
@@ -476,21 +858,216 @@ class BeliefState implements Comparable<BeliefState>, Iterable<GameState>{
 public class AI {
 
 
-	private static final ExploredSet cache = new ExploredSet(); // shared cache for multiple games
-	private static final int[][] POSITIONAL_SCORE = {
-			{1, 2, 3, 5, 3, 2, 1},
-			{2, 4, 6, 8, 6, 4, 2},
-			{5, 8, 11, 13, 11, 8, 5},
-			{5, 8, 11, 13, 11, 8, 5},
-			{4, 6, 8, 10, 8, 6, 4},
-			{3, 4, 5, 7, 5, 4, 3}
-	};
-	private static final float PROBA_THRESHOLD = 0.00001f;
+	// shared cache for multiple games, its size in MB and replacement policy are read from the system properties ai.tt.mb and ai.tt.replacement
+	private static final TranspositionTable cache = new TranspositionTable(Long.getLong("ai.tt.mb", 64) << 20,
+			TranspositionTable.Replacement.valueOf(System.getProperty("ai.tt.replacement", "DEPTH_PREFERRED")));
+	private static final long TASK_TABLE_BYTES = 1 << 20; // size of the private table of a task searching a move of the root in parallel
+	private static final long SPLIT_TABLE_BYTES = 1 << 18; // size of the private table of a task searching a child of an AND node in parallel
+	// with the probability mass pruning (ai.prune, which requires ai.expectimax), the belief states less likely than this threshold (relative to the root) are only evaluated, and the states less likely are removed from the belief states
+	private static final float PROBA_THRESHOLD = Float.parseFloat(System.getProperty("ai.prune.threshold", "0.00001"));
+	// the AND nodes take the average of their results weighted by their probability instead of their minimum, and the evaluations are averages of the states weighted by their probability
+	private static final boolean EXPECTIMAX = Boolean.getBoolean("ai.expectimax");
+	private static final float WIN_SCORE = 10000; // score of a state won by the AI (see evaluateTerminalState), the scores of the expectimax search are within [-WIN_SCORE, WIN_SCORE]
+	// the pruning is only done with the expectimax AND node: the score of a minimum over the results can change by 2 * WIN_SCORE when an unlikely result is left out, whatever its probability
+	private static final boolean PRUNE = Boolean.getBoolean("ai.prune") && EXPECTIMAX;
 	private static final int DEPTH = 6;
+	private static final int MAX_DEPTH = Integer.getInteger("ai.depth", DEPTH); // depth of the last iteration of the iterative deepening
+	private static final int SOLVER_EMPTY = Integer.getInteger("ai.solver.empty", 14); // number of empty squares from which the leaves of the search are solved exactly, 0 to disable
+	private static volatile long timeBudget = Long.getLong("ai.time.ms", 0); // time allowed for each move in milliseconds, 0 for no limit
+	private static volatile int threads = Integer.getInteger("ai.threads", 1); // number of threads used to search the moves of the root
+	private static volatile int splitDepth = Integer.getInteger("ai.split.depth", 0); // minimum remaining depth of an AND node searched in parallel, 0 to disable
+	private static volatile int splitSize = Integer.getInteger("ai.split.size", Integer.MAX_VALUE); // minimum size of an AND node searched in parallel
+	private static volatile boolean verbose = Boolean.parseBoolean(System.getProperty("ai.verbose", "true")); // print the reasons of each move
+	private static final LongAdder nodes = new LongAdder(); // number of nodes searched since the start of the program, added at the end of each search
+	private static volatile Engine engine = Engine.valueOf(System.getProperty("ai.engine", "AND_OR")); // algorithm selecting the moves
+	private static volatile OpeningBook book = loadOpeningBook(System.getProperty("ai.book")); // moves of the beginning of the game, null if there is no book
+	private static ForkJoinPool pool; // guarded by the lock of AI, as activeSearches
+	private static int activeSearches; // number of searches using the pool
+
+	/**
+	 * Algorithm used by findNextMove to select the moves which are neither in the opening book nor immediate wins or blocks
+	 */
+	public enum Engine {
+		AND_OR, // AND-OR search with alpha-beta pruning and iterative deepening (see andOrSearch)
+		POMCP, // Monte Carlo tree search on sampled states (see POMCP)
+		PIMC // search of sampled states as games of perfect information (see PIMC)
+	}
+
+	/**
+	 * Thrown when the deadline of a search is reached, in order to abandon the current iteration of the iterative deepening (also used by PIMC)
+	 */
+	static final class SearchTimeoutException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		static final SearchTimeoutException INSTANCE = new SearchTimeoutException();
+
+		private SearchTimeoutException() {
+			super("search deadline reached", null, false, false);
+		}
+	}
+
+	/**
+	 * State shared by all the nodes of the search of a move.
+	 * A task searching a part of the tree in parallel has its own context (see fork), whose private table receives the entries stored by the task. The task reads
+	 * its table, then the tables of the contexts it was forked from and the shared table, which are not modified until the task is joined and its table merged.
+	 * The values found by a task thus only depend on the tables when it is forked, not on the progress of the other tasks.
+	 */
+	private static final class SearchContext {
+		private final long deadline; // in nanoseconds, 0 if there is no deadline
+		private final SearchStats stats;
+		private final float minMass; // smallest probability of a belief state or of a state searched, 0 without probability mass pruning
+		private final SearchContext parent; // context the task was forked from, null for the context of the search
+		private final TranspositionTable table; // entries stored by the task, null to store them in the shared table
+		private float error; // bound of the error of the probability mass pruning on the last value returned with this context (see andOrSearch)
+
+		private SearchContext(long timeBudget, SearchStats stats, float minMass) {
+			this.deadline = timeBudget > 0? System.nanoTime() + timeBudget * 1000000: 0;
+			this.stats = stats;
+			this.minMass = minMass;
+			this.parent = null;
+			this.table = null;
+		}
+
+		private SearchContext(SearchContext parent, long tableBytes) {
+			this.deadline = parent.deadline;
+			this.stats = parent.stats;
+			this.minMass = parent.minMass;
+			this.parent = parent;
+			this.table = new TranspositionTable(tableBytes, TranspositionTable.Replacement.DEPTH_PREFERRED);
+		}
+
+		/**
+		 * Create the context of a task searching a part of the tree in parallel, with its own table
+		 * @param tableBytes memory budget of the table of the task
+		 */
+		private SearchContext fork(long tableBytes) {
+			return new SearchContext(this, tableBytes);
+		}
+
+		/**
+		 * Store the entries of a task forked from this context in the table of this context, once the task is complete
+		 */
+		private void merge(SearchContext child) {
+			child.table.copyTo(this.table != null? this.table: cache);
+		}
+
+		/**
+		 * Search the entry of a belief state in the table of this context, then in the tables of its parents and in the shared table
+		 */
+		private long probe(long key) {
+			for (SearchContext context = this; context != null; context = context.parent) {
+				if (context.table != null) {
+					long entry = context.table.probe(key);
+					if (entry != 0) {
+						return entry;
+					}
+				}
+			}
+			return cache.probe(key);
+		}
+
+		private void store(long key, int depth, float value, int bound, int move, float error) {
+			(this.table != null? this.table: cache).store(key, depth, value, bound, move, this.minMass > 0, error);
+		}
+
+		/**
+		 * Interrupt the search by throwing a SearchTimeoutException if the deadline is reached
+		 */
+		private void checkDeadline() {
+			if (this.deadline != 0 && System.nanoTime() - this.deadline > 0) {
+				throw SearchTimeoutException.INSTANCE;
+			}
+		}
+	}
 
 	public AI() {
 	}
 
+	/**
+	 * Set the number of threads used by findNextMove. With more than one thread, the moves of the root are searched in parallel (see searchRootParallel).
+	 * The move selected only depends on the configuration and on the transposition table at the start of the search, not on the scheduling of the threads,
+	 * as long as no other search runs at the same time. The new number of threads applies to the first search started when no other one is running.
+	 * @param count number of threads
+	 */
+	public static void setThreads(int count) {
+		threads = Math.max(1, count);
+	}
+
+	/**
+	 * Enable the parallel search of the children of AND nodes, in addition to the parallel search of the moves of the root (see setThreads).
+	 * The children of an AND node are searched in parallel if its remaining depth or its size reaches the given thresholds, and sequentially otherwise.
+	 * @param minDepth minimum remaining depth of an AND node searched in parallel, 0 to disable the parallel search of AND nodes
+	 * @param minSize minimum number of states of an AND node searched in parallel
+	 */
+	public static void setAndNodeSplit(int minDepth, int minSize) {
+		splitDepth = minDepth;
+		splitSize = minSize;
+	}
+
+	/**
+	 * Select the algorithm used by findNextMove (by default the one given by the system property ai.engine, AND_OR if there is none)
+	 * @param selected the algorithm
+	 */
+	public static void setEngine(Engine selected) {
+		engine = selected;
+	}
+
+	/**
+	 * Set the opening book consulted by findNextMove before searching (by default the file given by the system property ai.book, if any)
+	 * @param openingBook the opening book, or null to always search
+	 */
+	public static void setOpeningBook(OpeningBook openingBook) {
+		book = openingBook;
+	}
+
+	private static OpeningBook loadOpeningBook(String file) {
+		if (file == null) {
+			return null;
+		}
+		try {
+			return OpeningBook.open(Paths.get(file));
+		} catch (IOException e) {
+			System.err.println("cannot read the opening book " + file + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Enable or disable the messages printed by findNextMove (disabled when many games are played, see Tournament)
+	 * @param enabled true to print the messages
+	 */
+	public static void setVerbose(boolean enabled) {
+		verbose = enabled;
+	}
+
+	/**
+	 * Returns the number of nodes of the AND-OR search visited since the start of the program, by all the threads
+	 * @return the number of nodes searched
+	 */
+	public static long nodeCount() {
+		return nodes.sum();
+	}
+
+	/**
+	 * Empty the transposition table, so the next search does not reuse the results of the previous ones (used by Benchmark)
+	 */
+	static void clearCache() {
+		cache.clear();
+	}
+
+	static void log(String message) {
+		if (verbose) {
+			System.out.println(message);
+		}
+	}
+
+	/**
+	 * Set the time allowed to findNextMove for each move. The search returns the best move of the last iteration completed before the deadline.
+	 * @param millis time budget in milliseconds, 0 for no limit (the search then always reaches the maximum depth)
+	 */
+	public static void setTimeBudget(long millis) {
+		timeBudget = millis;
+	}
+
 		/**
 		 * determines the best next move for the AI using the AND-OR search alg
 		 *
@@ -498,21 +1075,52 @@ public class AI {
 		 * @return The index of the best column to play.
 		 */
 	public static int findNextMove(BeliefState beliefState) {
+		return search(beliefState).move();
+	}
+
+	/**
+	 * Determine the best next move for the AI (see findNextMove), and return it with the statistics of the search.
+	 * The statistics are also recorded as a JFR event when a recording is running.
+	 *
+	 * @param beliefState The current belief state of the game.
+	 * @return The statistics of the search, including the move selected.
+	 */
+	public static SearchStats search(BeliefState beliefState) {
+		SearchStats stats = new SearchStats(beliefState);
+		chooseMove(beliefState, stats);
+		nodes.add(stats.nodes());
+		return stats;
+	}
+
+	private static void chooseMove(BeliefState beliefState, SearchStats stats) {
 		int[] preferredOrder = {3, 2, 4, 1, 5, 0, 6};
 		ArrayList<Integer> availableMoves = beliefState.getMoves();
 
+		// look for the belief state in the opening book
+		OpeningBook openingBook = book;
+		if (openingBook != null) {
+			int bookMove = openingBook.move(beliefState);
+			if (availableMoves.contains(bookMove)) {
+				log("opening book move at column " + bookMove);
+				stats.finish(bookMove, Float.NaN, openingBook.depth(), "book");
+				return;
+			}
+		}
+
 		// check for an immediate winning move
 		int winMove = findImmediateWin(beliefState);
 		if (winMove != -1) {
-			System.out.println("winning move at column " + winMove);
-			return winMove;
+			log("winning move at column " + winMove);
+			stats.finish(winMove, Float.NaN, 0, "win");
+			return;
 		}
 
 		// check for immediate threats to block
 		int immediateThreat = findImmediateThreat(beliefState);
 		if (immediateThreat != -1) {
-			System.out.println("blocking immediate threat at column " + immediateThreat);
-			return immediateThreat;
+			log("blocking immediate threat at column " + immediateThreat);
+			stats.finish(immediateThreat, Float.NaN, 0, "threat");
+			return;
 		}
 
 		// prioritize moves based on preferred order
@@ -526,104 +1134,546 @@ public class AI {
 
 
 		if (availableMoves.isEmpty()) {
-			System.out.println("no available moves. returning -1.");
-			return -1; // no moves possible
+			log("no available moves. returning -1.");
+			stats.finish(-1, Float.NaN, 0, "fallback"); // no moves possible
+			return;
 		}
 
-		// evaluate moves using AND-OR search
+		long deadline = timeBudget > 0? System.nanoTime() + timeBudget * 1000000: 0;
+		if (engine == Engine.POMCP || engine == Engine.PIMC) {
+			ForkJoinPool pool = threads > 1? acquirePool(): null;
+			try {
+				if (engine == Engine.POMCP) {
+					POMCP.search(beliefState, prioritizedMoves, deadline, pool, stats);
+					log("selected move: " + stats.move() + " with POMCP value: " + stats.score() + " after " + stats.nodes() + " playouts");
+				}
+				else {
+					PIMC.search(beliefState, prioritizedMoves, deadline, pool, stats);
+					log("selected move: " + stats.move() + " with PIMC score: " + stats.score() + " at depth " + stats.depth());
+				}
+			} finally {
+				if (pool != null) {
+					releasePool();
+				}
+			}
+			return;
+		}
+
+		// evaluate moves using AND-OR search, deepening the search until the maximum depth or the deadline is reached
+		SearchContext context = new SearchContext(timeBudget, stats, PRUNE? PROBA_THRESHOLD * beliefState.probaSum(): 0);
 		int bestMove = -1;
 		float bestScore = Float.NEGATIVE_INFINITY;
+		float bestError = 0;
+		int depthReached = 0;
+		int maxDepth = Math.min(MAX_DEPTH, 42 - beliefState.played());
+
+		// without deadline, the shallower iterations cost more than what they save by ordering the moves of the deeper ones
+		int firstDepth = context.deadline != 0? 1: maxDepth;
+
+		ForkJoinPool pool = threads > 1? acquirePool(): null;
+		try {
+			for (int depth = firstDepth; depth <= maxDepth; depth++) {
+				int iterationBestMove = -1;
+				float iterationBestScore = Float.NEGATIVE_INFINITY;
+				float iterationBestError = 0;
+				try {
+					float[] moveErrors = new float[prioritizedMoves.size()];
+					float[] moveScores = pool != null? searchRootParallel(pool, context, beliefState, prioritizedMoves, depth, moveErrors): searchRoot(context, beliefState, prioritizedMoves, depth, moveErrors);
+					for (int i = 0; i < prioritizedMoves.size(); i++) {
+						if (moveScores[i] > iterationBestScore) {
+							iterationBestScore = moveScores[i];
+							iterationBestMove = prioritizedMoves.get(i);
+							iterationBestError = moveErrors[i];
+						}
+					}
+				} catch (SearchTimeoutException e) {
+					break; // keep the result of the last completed iteration
+				}
+				bestMove = iterationBestMove;
+				bestScore = iterationBestScore;
+				bestError = iterationBestError;
+				depthReached = depth;
+			}
+		} finally {
+			if (pool != null) {
+				releasePool();
+			}
+		}
 
-		for (int move : prioritizedMoves) {
-			Results results = beliefState.putPiecePlayer(move);
-			if (results == null || results.results.isEmpty()) continue;
+		if (bestScore == Float.NEGATIVE_INFINITY) {
+			log("Debug: No beneficial move found, choosing a random column.");
+			stats.finish(availableMoves.get(0), bestScore, depthReached, "fallback"); // Fallback to the first available move
+			return;
+		}
+
+		log("selected move: " + bestMove + " with score: " + bestScore + " at depth " + depthReached + (PRUNE? " (error bound of the pruning: " + bestError + ")": ""));
+		stats.scoreError(bestError);
+		stats.finish(bestMove, bestScore, depthReached, "search");
+	}
+
+	/**
+	 * Evaluate each move of the root of the search, one after the other
+	 *
+	 * @param context     State shared by the nodes of the search (deadline).
+	 * @param beliefState The current belief state of the game.
+	 * @param moves       The moves to evaluate.
+	 * @param depth       Depth of the search.
+	 * @param moveErrors  Filled with the error of the pruning on the score of each move (see andOrSearch).
+	 * @return The score of each move, or negative infinity if the move has no result.
+	 */
+	private static float[] searchRoot(SearchContext context, BeliefState beliefState, ArrayList<Integer> moves, int depth, float[] moveErrors) {
+		float[] moveScores = new float[moves.size()];
+		for (int i = 0; i < moves.size(); i++) {
+			moveScores[i] = Float.NEGATIVE_INFINITY;
+			moveErrors[i] = 0;
+			Results results = beliefState.putPiecePlayer(moves.get(i));
+			if (results == null || results.isEmpty()) continue;
 
-			float moveScore = Float.NEGATIVE_INFINITY;
 			for (BeliefState nextState : results) {
-				float score = andOrSearch(nextState, DEPTH, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, new HashSet<>());
-				moveScore = Math.max(moveScore, score);
+				float score = andOrSearch(context, nextState, depth, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+				moveScores[i] = Math.max(moveScores[i], score);
+				moveErrors[i] = Math.max(moveErrors[i], context.error);
 			}
+		}
+		return moveScores;
+	}
+
+	/**
+	 * Evaluate the moves of the root of the search in parallel. The first move is searched alone, and its score is the alpha bound shared by the other moves,
+	 * which are searched by one task each: a move may only get an upper bound of its score when it is not better than the first move.
+	 * Each task stores its entries in its own table (see SearchContext), merged into the shared table in the order of the moves once all the tasks are complete,
+	 * so the scores and the move selected do not depend on the scheduling of the tasks.
+	 *
+	 * @param pool        Pool running the tasks (see acquirePool).
+	 * @param context     State shared by the nodes of the search (deadline).
+	 * @param beliefState The current belief state of the game.
+	 * @param moves       The moves to evaluate.
+	 * @param depth       Depth of the search.
+	 * @param moveErrors  Filled with the error of the pruning on the score of each move (see andOrSearch).
+	 * @return The score of each move, or an upper bound of that score if it is not higher than the score of the first move.
+	 */
+	private static float[] searchRootParallel(ForkJoinPool pool, SearchContext context, BeliefState beliefState, ArrayList<Integer> moves, int depth, float[] moveErrors) {
+		float[] moveScores = new float[moves.size()];
+		moveScores[0] = searchMove(context, beliefState, moves.get(0), depth, Float.NEGATIVE_INFINITY);
+		moveErrors[0] = context.error;
+		float alpha = moveScores[0];
+		beliefState.size(); // read before the tasks start (see joinAll)
+		List<SearchContext> contexts = new ArrayList<>();
+		List<ForkJoinTask<Float>> tasks = new ArrayList<>();
+		for (int i = 1; i < moves.size(); i++) {
+			int move = moves.get(i);
+			SearchContext taskContext = context.fork(TASK_TABLE_BYTES);
+			contexts.add(taskContext);
+			tasks.add(pool.submit(() -> {
+				try {
+					return searchMove(taskContext, beliefState, move, depth, alpha);
+				} catch (SearchTimeoutException e) {
+					return null;
+				}
+			}));
+		}
+		List<Float> scores = joinAll(tasks);
+		for (int i = 1; i < moves.size(); i++) {
+			context.merge(contexts.get(i - 1));
+		}
+		if (scores.contains(null)) {
+			throw SearchTimeoutException.INSTANCE;
+		}
+		for (int i = 1; i < moves.size(); i++) {
+			moveScores[i] = scores.get(i - 1);
+			moveErrors[i] = contexts.get(i - 1).error;
+		}
+		return moveScores;
+	}
 
-			if (moveScore > bestScore) {
-				bestScore = moveScore;
-				bestMove = move;
+	/**
+	 * Evaluate a move of the root of the search
+	 *
+	 * @param context     State shared by the nodes of the search (deadline).
+	 * @param beliefState The current belief state of the game.
+	 * @param move        The move to evaluate.
+	 * @param depth       Depth of the search.
+	 * @param alpha       Score of another move, the bound under which the score of this move is not needed.
+	 * @return The score of the move if it is above alpha, and an upper bound of its score otherwise, context.error being the error of the pruning on it (see andOrSearch).
+	 */
+	private static float searchMove(SearchContext context, BeliefState beliefState, int move, int depth, float alpha) {
+		Results results = beliefState.putPiecePlayer(move);
+		float moveScore = Float.NEGATIVE_INFINITY;
+		float error = 0;
+		if (results != null) {
+			for (BeliefState nextState : results) {
+				float score = andOrSearch(context, nextState, depth, Math.max(alpha, moveScore), Float.POSITIVE_INFINITY);
+				moveScore = Math.max(moveScore, score);
+				error = Math.max(error, context.error);
 			}
 		}
+		context.error = error;
+		return moveScore;
+	}
 
-		if (bestScore == Float.NEGATIVE_INFINITY) {
-			System.out.println("Debug: No beneficial move found, choosing a random column.");
-			if (!availableMoves.isEmpty()) {
-				return availableMoves.get(0); // Fallback to the first available move
+	/**
+	 * Check if the children of an AND node should be searched in parallel: the node must be searched by a thread of the pool,
+	 * and be either deep enough or large enough for the search of its children to be worth a task
+	 */
+	private static boolean isSplitPoint(BeliefState beliefState, int depth) {
+		return splitDepth > 0 && ForkJoinTask.inForkJoinPool() && (depth >= splitDepth || beliefState.size() >= splitSize);
+	}
+
+	/**
+	 * Search the children of an AND node in parallel. The first child is searched alone in order to lower beta, then the other children are forked with that window
+	 * and stolen by idle threads of the pool. Each forked child stores its entries in its own table (see SearchContext), merged in the order of the children.
+	 *
+	 * @param context   State shared by the nodes of the search (deadline).
+	 * @param predicted Results of the move of the opponent.
+	 * @param depth     Remaining search depth of the AND node.
+	 * @param alpha     Alpha value for pruning.
+	 * @param beta      Beta value for pruning.
+	 * @return The minimum of the scores of the children, context.error being the largest error of the children.
+	 */
+	private static float searchAndNodeParallel(SearchContext context, Results predicted, int depth, float alpha, float beta) {
+		Iterator<BeliefState> iter = predicted.iterator();
+		if (!iter.hasNext()) {
+			return Float.POSITIVE_INFINITY;
+		}
+		float bestScore = andOrSearch(context, iter.next(), depth - 1, alpha, beta);
+		float error = context.error;
+		float childBeta = Math.min(beta, bestScore);
+		if (childBeta <= alpha) {
+			context.stats.cutoff();
+			return bestScore; // prune
+		}
+		List<SearchContext> contexts = new ArrayList<>();
+		List<ForkJoinTask<Float>> tasks = new ArrayList<>();
+		while (iter.hasNext()) {
+			BeliefState nextState = iter.next();
+			SearchContext childContext = context.fork(SPLIT_TABLE_BYTES);
+			contexts.add(childContext);
+			tasks.add(ForkJoinTask.adapt(() -> {
+				try {
+					return andOrSearch(childContext, nextState, depth - 1, alpha, childBeta);
+				} catch (SearchTimeoutException e) {
+					return null;
+				}
+			}).fork());
+		}
+		List<Float> scores = joinAll(tasks);
+		for (SearchContext childContext : contexts) {
+			context.merge(childContext);
+		}
+		if (scores.contains(null)) {
+			throw SearchTimeoutException.INSTANCE;
+		}
+		for (int i = 0; i < scores.size(); i++) {
+			bestScore = Math.min(bestScore, scores.get(i));
+			error = Math.max(error, contexts.get(i).error);
+		}
+		context.error = error;
+		return bestScore;
+	}
+
+	/**
+	 * Returns the pool used to search the moves in parallel, which must be released by releasePool at the end of the search.
+	 * The pool is replaced by one with the number of threads configured only when no other search uses it, so a pool is never shut down during a search.
+	 */
+	static synchronized ForkJoinPool acquirePool() {
+		if (pool == null || (pool.getParallelism() != threads && activeSearches == 0)) {
+			if (pool != null) {
+				pool.shutdown();
 			}
-			return -1; // No moves possible
+			pool = new ForkJoinPool(threads);
 		}
+		activeSearches++;
+		return pool;
+	}
+
+	/**
+	 * Signal the end of a search using the pool returned by acquirePool
+	 */
+	static synchronized void releasePool() {
+		activeSearches--;
+	}
 
-		System.out.println("selected move: " + bestMove + " with score: " + bestScore);
-		return bestMove;
+	/**
+	 * Wait for the tasks of a parallel search (AI, PIMC), each task returning null when it is stopped by the deadline.
+	 * All the tasks are joined even after a timeout, because they read the belief states and the tables of the search which started them: these may only change
+	 * (the tables of the tasks merged, another iteration or another search started) once no task runs. For the same reason, a belief state searched by several tasks
+	 * must be read once before they start, so that the states added to it are merged (see BeliefState.add) before the threads share it.
+	 *
+	 * @param tasks The tasks, started.
+	 * @return The results of the tasks in the order of the list, null for the tasks stopped by the deadline.
+	 */
+	static <T> List<T> joinAll(List<ForkJoinTask<T>> tasks) {
+		List<T> results = new ArrayList<>(tasks.size());
+		for (ForkJoinTask<T> task : tasks) {
+			results.add(task.join());
+		}
+		return results;
 	}
 
 		/**
-		 * Performs an AND-OR search on the belief states
+		 * Performs an AND-OR search on the belief states.
+		 * With the probability mass pruning, context.error is set to a bound of the difference between the score returned and the one of the same search without pruning:
+		 * a belief state only evaluated may be off by 2 * WIN_SCORE, removing states of mass m from a belief state of mass M changes its average by at most m / M * 2 * WIN_SCORE,
+		 * an AND node averages the errors of its results with their probabilities, and an OR node takes the largest error of its children.
 		 *
+		 * @param context     State shared by the nodes of the search (deadline, error of the pruning).
 		 * @param beliefState Current belief state.
 		 * @param depth       Remaining search depth.
 		 * @param alpha       Alpha value for pruning.
 		 * @param beta        Beta value for pruning.
-		 * @param path        Set of visited states to avoid cycles.
 		 * @return A score representing the quality of the belief state.
 		 */
-	private static float andOrSearch(BeliefState beliefState, int depth, float alpha, float beta, Set<BeliefState> path) {
-		BeliefState canonicalState = canonicalizeBeliefState(beliefState);
-		if (path.contains(canonicalState)) {
-			return Float.NEGATIVE_INFINITY; // prevent cycles
+	private static float andOrSearch(SearchContext context, BeliefState beliefState, int depth, float alpha, float beta) {
+		context.checkDeadline();
+		// probability mass pruning: an unlikely belief state is only evaluated, and the unlikely states are removed from the others
+		boolean evaluatedOnly = false;
+		float pruneError = 0; // error of the states removed from the belief state
+		if (context.minMass > 0) {
+			float mass = beliefState.probaSum();
+			if (mass < context.minMass) {
+				if (depth > 0) {
+					context.stats.prune(mass);
+					depth = 0;
+					evaluatedOnly = true;
+				}
+			} else {
+				BeliefState pruned = beliefState.prune(context.minMass);
+				if (pruned != beliefState) {
+					float removed = mass - pruned.probaSum();
+					context.stats.prune(removed);
+					pruneError = removed < mass? removed / mass * 2 * WIN_SCORE: 2 * WIN_SCORE; // the whole range if a probability is not a number
+					beliefState = pruned;
+				}
+			}
 		}
-		path.add(canonicalState);
-
-		Float cachedScore = cache.get(canonicalState);
-		if (cachedScore != null) {
-			return cachedScore;
+		context.error = evaluatedOnly? 2 * WIN_SCORE: pruneError; // error of the values which do not depend on the search of the children
+		context.stats.node(beliefState.size());
+		long key = beliefState.canonicalKey();
+		long entry = context.probe(key);
+		// the values of the searches with probability mass pruning are only reused by such searches, the others only take their move
+		if (entry != 0 && TranspositionTable.depth(entry) >= depth && (context.minMass > 0 || !TranspositionTable.isApproximate(entry))) {
+			float cachedScore = TranspositionTable.value(entry);
+			int bound = TranspositionTable.bound(entry);
+			if (bound == TranspositionTable.EXACT
+					|| (bound == TranspositionTable.LOWER && cachedScore >= beta)
+					|| (bound == TranspositionTable.UPPER && cachedScore <= alpha)) {
+				context.stats.probe(true, true);
+				if (!evaluatedOnly) {
+					context.error += TranspositionTable.error(entry);
+				}
+				return cachedScore;
+			}
 		}
+		context.stats.probe(entry != 0, false);
 
 		// base cases
 		if (beliefState.isGameOver()) {
 			return evaluateTerminalState(beliefState);
 		}
 		if (depth == 0) {
+			if (SOLVER_EMPTY > 0 && 42 - beliefState.played() <= SOLVER_EMPTY) {
+				return evaluateEndgameState(context, beliefState);
+			}
 			return evaluateNonTerminalState(beliefState);
 		}
 
+		float alphaOrig = alpha, betaOrig = beta;
+		int bestMove = -1;
 		float bestScore;
+		float error = 0; // error of the pruning in the children
 		if (beliefState.turn()) { // opponent's turn (AND node)
 			bestScore = Float.POSITIVE_INFINITY;
-			for (BeliefState nextState : beliefState.predict()) {
-				float score = andOrSearch(nextState, depth - 1, alpha, beta, path);
-				bestScore = Math.min(bestScore, score);
-				beta = Math.min(beta, score);
-				if (beta <= alpha) break; // prune
+			Results predicted = beliefState.predict();
+			context.stats.prediction(predicted.states());
+			if (EXPECTIMAX) {
+				bestScore = searchChanceNode(context, predicted, depth, alpha, beta);
+				error = context.error;
+			} else if (isSplitPoint(beliefState, depth)) {
+				bestScore = searchAndNodeParallel(context, predicted, depth, alpha, beta);
+				error = context.error;
+			} else {
+				for (BeliefState nextState : predicted) {
+					float score = andOrSearch(context, nextState, depth - 1, alpha, beta);
+					error = Math.max(error, context.error);
+					bestScore = Math.min(bestScore, score);
+					beta = Math.min(beta, score);
+					if (beta <= alpha) { // prune
+						context.stats.cutoff();
+						break;
+					}
+				}
 			}
 		} else { // AI's turn (OR node)
 			bestScore = Float.NEGATIVE_INFINITY;
-			for (int move : beliefState.getMoves()) {
+			ArrayList<Integer> moves = beliefState.getMoves();
+			// search first the best move found by a previous search of this state (e.g., at the previous iteration)
+			Integer hashMove = entry != 0? TranspositionTable.move(entry): -1;
+			if (moves.remove(hashMove)) {
+				moves.add(0, hashMove);
+			}
+			for (int move : moves) {
 				Results results = beliefState.putPiecePlayer(move);
 				if (results == null) continue;
 
 				for (BeliefState nextState : results) {
-					float score = andOrSearch(nextState, depth - 1, alpha, beta, path);
-					bestScore = Math.max(bestScore, score);
+					float score = andOrSearch(context, nextState, depth - 1, alpha, beta);
+					error = Math.max(error, context.error);
+					if (score > bestScore) {
+						bestScore = score;
+						bestMove = move;
+					}
 					alpha = Math.max(alpha, score);
-					if (alpha >= beta) break; // prune
+					if (alpha >= beta) { // prune
+						context.stats.cutoff();
+						break;
+					}
 				}
 			}
 		}
 
-		path.remove(canonicalState);
-
 		// cache the result and return the score
 		bestScore = Math.round(bestScore * 1e4) / 1e4f; // round for precision
-		cache.put(canonicalState, bestScore);
+		int bound = bestScore <= alphaOrig? TranspositionTable.UPPER: bestScore >= betaOrig? TranspositionTable.LOWER: TranspositionTable.EXACT;
+		context.store(key, depth, bestScore, bound, bestMove, error); // the entry is the one of the belief state without the states removed
+		context.error = Math.min(2 * WIN_SCORE, pruneError + error);
 		return bestScore;
 	}
 
+	/**
+	 * Expectimax version of the AND node (ai.expectimax): the value is the average of the values of the results of the move of the opponent, weighted by their probability.
+	 * The values being within [-WIN_SCORE, WIN_SCORE], the average is bounded before all the results are searched, which allows the Star2 pruning (Ballard):
+	 * each result is first probed by searching only one move of the AI, which gives a lower bound of its value, and the node fails high as soon as the average of the lower bounds reaches beta.
+	 * Then the results are searched with the windows of Star1, and the node fails low or high as soon as the bounds of the average leave the window.
+	 *
+	 * @param context   State shared by the nodes of the search (deadline).
+	 * @param predicted The results of the move of the opponent.
+	 * @param depth     Remaining search depth of the AND node.
+	 * @param alpha     Alpha value for pruning.
+	 * @param beta      Beta value for pruning.
+	 * @return The average of the values of the results, or a bound of it outside of the window, context.error being the average of the errors of the results.
+	 */
+	private static float searchChanceNode(SearchContext context, Results predicted, int depth, float alpha, float beta) {
+		int count = predicted.size();
+		BeliefState[] children = new BeliefState[count];
+		double[] probas = new double[count];
+		double total = 0;
+		for (int i = 0; i < count; i++) {
+			BeliefState child = predicted.result(i);
+			double proba = child.probaSum();
+			// the most probable results first, they move the bounds of the average the most
+			int j = i;
+			for (; j > 0 && probas[j - 1] < proba; j--) {
+				children[j] = children[j - 1];
+				probas[j] = probas[j - 1];
+			}
+			children[j] = child;
+			probas[j] = proba;
+			total += proba;
+		}
+		for (int i = 0; i < count; i++) {
+			probas[i] = total > 0 ? probas[i] / total : 1.0 / count;
+		}
+
+		// Star2: probe the results, the lower bounds of the results which are not probed yet being -WIN_SCORE
+		double[] lower = new double[count];
+		double lowerSum = -WIN_SCORE; // average of the lower bounds of the results
+		double lowerError = 0; // average of the errors of the lower bounds
+		double[] probeErrors = new double[count];
+		for (int i = 0; i < count; i++) {
+			lower[i] = -WIN_SCORE;
+			if (probas[i] == 0) continue;
+			double childBeta = (beta - lowerSum) / probas[i] - WIN_SCORE; // value of the result from which the average of the lower bounds reaches beta
+			float probe = probeSearch(context, children[i], depth - 1, -WIN_SCORE, (float) Math.min(WIN_SCORE, childBeta));
+			lower[i] = Math.max(-WIN_SCORE, Math.min(WIN_SCORE, probe));
+			lowerSum += probas[i] * (lower[i] + WIN_SCORE);
+			probeErrors[i] = context.error;
+			lowerError += probas[i] * probeErrors[i];
+			if (lowerSum >= beta) {
+				context.stats.cutoff();
+				context.error = (float) lowerError;
+				return (float) lowerSum;
+			}
+		}
+
+		// Star1: search the results, the values of the results which are not searched yet being within their lower bound and WIN_SCORE
+		double sum = 0; // sum of the weighted values of the results searched
+		double error = 0; // sum of the weighted errors of the results searched
+		double upperRest = WIN_SCORE, lowerRest = lowerSum; // bounds of the sum of the weighted values of the other results
+		double lowerRestError = lowerError;
+		for (int i = 0; i < count; i++) {
+			if (probas[i] == 0) continue;
+			upperRest -= probas[i] * WIN_SCORE;
+			lowerRest -= probas[i] * lower[i];
+			lowerRestError -= probas[i] * probeErrors[i];
+			float childAlpha = (float) Math.max(-WIN_SCORE, (alpha - sum - upperRest) / probas[i]);
+			float childBeta = (float) Math.min(WIN_SCORE, (beta - sum - lowerRest) / probas[i]);
+			float score = andOrSearch(context, children[i], depth - 1, childAlpha, childBeta);
+			sum += probas[i] * Math.max(-WIN_SCORE, Math.min(WIN_SCORE, score));
+			error += probas[i] * context.error;
+			if (sum + upperRest <= alpha) { // the average cannot reach alpha
+				context.stats.cutoff();
+				context.error = (float) error;
+				return (float) (sum + upperRest);
+			}
+			if (sum + lowerRest >= beta) { // the average cannot be lower than beta
+				context.stats.cutoff();
+				context.error = (float) (error + Math.max(0, lowerRestError));
+				return (float) (sum + lowerRest);
+			}
+		}
+		context.error = (float) error;
+		return (float) sum;
+	}
+
+	/**
+	 * Probe of the Star2 pruning (see searchChanceNode): search only the first move of the AI in a belief state (the best move of a previous search if there is one),
+	 * whose value is a lower bound of the value of the belief state when it is above alpha
+	 *
+	 * @param context     State shared by the nodes of the search (deadline).
+	 * @param beliefState A result of the move of the opponent.
+	 * @param depth       Remaining search depth.
+	 * @param alpha       Alpha value for pruning.
+	 * @param beta        Beta value for pruning.
+	 * @return The value of the first move, or a bound of it outside of the window, context.error being the error of the pruning on it (see andOrSearch).
+	 */
+	private static float probeSearch(SearchContext context, BeliefState beliefState, int depth, float alpha, float beta) {
+		if (depth == 0 || beliefState.turn() || beliefState.isGameOver() || beliefState.isFull()
+				|| (context.minMass > 0 && beliefState.probaSum() < context.minMass)) {
+			return andOrSearch(context, beliefState, depth, alpha, beta); // evaluated without searching the moves
+		}
+		long entry = context.probe(beliefState.canonicalKey());
+		ArrayList<Integer> moves = beliefState.getMoves();
+		int move = entry != 0 ? TranspositionTable.move(entry) : -1;
+		if (!moves.contains(move)) {
+			move = moves.get(0);
+		}
+		float score = Float.NEGATIVE_INFINITY;
+		float error = 0;
+		for (BeliefState nextState : beliefState.putPiecePlayer(move)) {
+			score = Math.max(score, andOrSearch(context, nextState, depth - 1, Math.max(alpha, score), beta));
+			error = Math.max(error, context.error);
+			if (score >= beta) {
+				break;
+			}
+		}
+		context.error = error;
+		return score;
+	}
+
+	/**
+	 * Returns the weight of a state in the evaluation of a belief state: its probability with the expectimax AND node, and 1 otherwise (the evaluation is then the sum of the scores of the states)
+	 */
+	private static float weight(BeliefState beliefState, int i) {
+		return EXPECTIMAX ? beliefState.proba(i) : 1;
+	}
+
+	/**
+	 * Returns the evaluation of a belief state from the sum of the weighted scores of its states: their average with the expectimax AND node, and their sum otherwise
+	 */
+	private static float average(float totalScore, float totalWeight) {
+		return EXPECTIMAX ? (totalWeight > 0 ? totalScore / totalWeight : 0) : totalScore;
+	}
+
 	/**
 		 * evaluates terminal states
 		 *
@@ -631,85 +1681,76 @@ public class AI {
 		 * @return A score representing the outcome.
 		 */
 		private static float evaluateTerminalState(BeliefState beliefState) {
-			float totalScore = 0;
+			float totalScore = 0, totalWeight = 0;
 
-			for (GameState gameState : beliefState) {
-				if (gameState.isGameOver()) {
-					boolean aiWins = !gameState.turn();
-					totalScore += aiWins ? 10000 : -10000;
+			for (int i = 0; i < beliefState.size(); i++) {
+				long state = beliefState.state(i);
+				if (GameState.isGameOver(state)) {
+					boolean aiWins = !GameState.turn(state);
+					totalScore += weight(beliefState, i) * (aiWins ? WIN_SCORE : -WIN_SCORE);
 				}
+				totalWeight += weight(beliefState, i);
 			}
-			return totalScore;
+			return average(totalScore, totalWeight);
 		}
 
 		/**
-		 * evaluates non-terminal states using a heuristic function
+		 * evaluates the states of the end of the game exactly (see EndgameSolver), in place of the heuristic at the leaves of the search: each state is scored
+		 * as evaluateTerminalState would score its outcome under a perfect play of both players, 10000 if the AI wins, -10000 if the opponent wins and 0 for a draw.
+		 * The states whose game is already over are scored by their winner without being solved.
 		 *
+		 * @param context     State shared by the nodes of the search (deadline, statistics).
 		 * @param beliefState The belief state to evaluate.
-		 * @return A heuristic score.
+		 * @return The sum of the scores of the states.
 		 */
-		private static float evaluateNonTerminalState(BeliefState beliefState) {
-			float totalScore = 0;
-
-			for (GameState gameState : beliefState) {
-				for (int row = 0; row < 6; row++) {
-					for (int col = 0; col < 7; col++) {
-						int content = gameState.content(row, col);
-						if (content == 1) { // AI's pieces
-							totalScore += evaluateLine(gameState, row, col, 0, 1, 1);
-							totalScore += evaluateLine(gameState, row, col, 1, 0, 1);
-							totalScore += POSITIONAL_SCORE[row][col];
-						} else if (content == 2) { // Opponent's pieces
-							totalScore -= evaluateLine(gameState, row, col, 0, 1, 2);
-							totalScore -= POSITIONAL_SCORE[row][col];
-						}
+		private static float evaluateEndgameState(SearchContext context, BeliefState beliefState) {
+			float totalScore = 0, totalWeight = 0;
+			GameState gameState = new GameState();
+			EndgameSolver solver = new EndgameSolver(context.deadline);
+			try {
+				for (int i = 0; i < beliefState.size(); i++) {
+					long state = beliefState.state(i);
+					if (GameState.isGameOver(state)) {
+						boolean aiWins = !GameState.turn(state);
+						totalScore += weight(beliefState, i) * (aiWins ? WIN_SCORE : -WIN_SCORE);
 					}
+					else {
+						context.checkDeadline();
+						gameState.load(state);
+						int value = solver.solve(gameState);
+						totalScore += weight(beliefState, i) * (gameState.turn() ? -value : value) * WIN_SCORE;
+					}
+					totalWeight += weight(beliefState, i);
 				}
+			} finally {
+				context.stats.nodes(solver.nodes());
 			}
-
-			return totalScore;
+			return average(totalScore, totalWeight);
 		}
 
 		/**
-		 * Evaluates a line of tokens in a specific direction.
+		 * evaluates non-terminal states using a heuristic function (see GameState.evaluation), summed over the states without weighting them by their probability
+		 * (or averaged with their probability, and bounded by the score of a win, with the expectimax AND node)
+		 *
+		 * @param beliefState The belief state to evaluate.
+		 * @return A heuristic score.
 		 */
-		private static float evaluateLine(GameState gameState, int row, int col, int deltaRow, int deltaCol, int player) {
-			int count = 0;
-			boolean openStart = false, openEnd = false;
-
-			// check line ends for openness
-			if (isWithinBounds(row - deltaRow, col - deltaCol) && gameState.content(row - deltaRow, col - deltaCol) == 0) {
-				openStart = true;
-			}
-			for (int i = 0; i < 4; i++) {
-				int newRow = row + i * deltaRow;
-				int newCol = col + i * deltaCol;
-
-				if (isWithinBounds(newRow, newCol)) {
-					int content = gameState.content(newRow, newCol);
-					if (content == player) {
-						count++;
-					} else if (content != 0) {
-						return 0; // blocked line
-					}
-				} else {
-					return 0; // out of bounds
+		private static float evaluateNonTerminalState(BeliefState beliefState) {
+			float totalScore = 0, totalWeight = 0;
+			GameState gameState = new GameState();
+			for (int i = 0; i < beliefState.size(); i++) {
+				gameState.load(beliefState.state(i));
+				float score = gameState.evaluation();
+				if (EXPECTIMAX) {
+					score = Math.max(-WIN_SCORE, Math.min(WIN_SCORE, score));
 				}
-			}
-			if (isWithinBounds(row + 4 * deltaRow, col + 4 * deltaCol) && gameState.content(row + 4 * deltaRow, col + 4 * deltaCol) == 0) {
-				openEnd = true;
+				totalScore += weight(beliefState, i) * score;
+				totalWeight += weight(beliefState, i);
 			}
 
-			int openEnds = (openStart ? 1 : 0) + (openEnd ? 1 : 0);
-			if (count == 3 && openEnds > 0) return player == 1 ? 1000 : -1000; // three-in-a-row
-			if (count == 2 && openEnds > 0) return player == 1 ? 300 : -300;   // two-in-a-row
-
-			return count * openEnds; // general scoring for partial lines
+			return average(totalScore, totalWeight);
 		}
 
-	private static boolean isWithinBounds(int row, int col) {
-		return row >= 0 && row < 6 && col >= 0 && col < 7;
-	}
 	// finds immediate threats
 	private static int findImmediateThreat(BeliefState beliefState) {
 
@@ -721,17 +1762,16 @@ public class AI {
 			totalBeliefStates++;
 			for (int move : beliefState.getMoves()) {
 				if (!gameState.isFull(move)) {
-					GameState simulatedState = gameState.copy();
-
-					// simulate opponent's moves
-					simulatedState.changeTurn();
-					simulatedState.putPiece(move);
-					simulatedState.changeTurn();
-
-					// is it a direct threat?
-					if (simulatedState.isGameOver()) {
-						threatProbabilities.put(move, threatProbabilities.getOrDefault(move, 0.0) + 1.0);
+					// simulate opponent's moves in place, then revert them
+					gameState.changeTurn();
+					if (gameState.putPiece(move)) {
+						// is it a direct threat?
+						if (gameState.isGameOver()) {
+							threatProbabilities.put(move, threatProbabilities.getOrDefault(move, 0.0) + 1.0);
+						}
+						gameState.undoPiece(move);
 					}
+					gameState.changeTurn();
 				}
 			}
 		}
@@ -748,7 +1788,7 @@ public class AI {
 
 		for (Map.Entry<Integer, Double> entry : threatProbabilities.entrySet()) {
 			double probability = entry.getValue();
-			System.out.println("Move: " + entry.getKey() + ", Threat probability: " + probability);
+			log("Move: " + entry.getKey() + ", Threat probability: " + probability);
 
 			if (probability > threshold && probability > highestProbability) {
 				mostProbableThreat = entry.getKey();
@@ -758,7 +1798,7 @@ public class AI {
 
 		// return col with highest threat prob
 		if (mostProbableThreat != -1) {
-			System.out.println("Most probable threat detected at column: " + mostProbableThreat);
+			log("Most probable threat detected at column: " + mostProbableThreat);
 			return mostProbableThreat;
 		}
 
@@ -768,10 +1808,7 @@ public class AI {
 
 	private static int findImmediateWin(BeliefState beliefState) {
 		for (int move : beliefState.getMoves()) {
-			// Make a copy of the current belief state
-			BeliefState beliefStateCopy = beliefState.copy();
-
-			Results results = beliefStateCopy.putPiecePlayer(move);
+			Results results = beliefState.putPiecePlayer(move);
 			if (results == null) continue;
 
 			for (BeliefState nextState : results) {
@@ -803,19 +1840,6 @@ public class AI {
 		return count;
 	}
 
-	private static BeliefState canonicalizeBeliefState(BeliefState beliefState) {
-		BeliefState copy = beliefState.copy(); // Avoid modifying the original
-		float sum = copy.probaSum();
-
-		// Normalize and round probabilities
-		for (GameState state : copy) {
-			float normalizedProba = (state.proba() / sum);
-			float roundedProba = Math.round(normalizedProba * 1e6) / 1e6f; // Round to 6 decimals
-			state.setProba(roundedProba);
-		}
-
-		return copy; // Return the canonicalized state
-	}
 
 
 }
@@ -0,0 +1,383 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.function.LongSupplier;
+
+/**
+ * Micro benchmarks of the hot paths of the game, of the belief states and of the search, on a fixed corpus of positions.
+ * Usage: java Benchmark [-filter prefix] [-save file] [-baseline file] [-tolerance percent]
+ * Each benchmark is warmed up, then run for several rounds; the mean time and the number of bytes allocated by the thread of the benchmark are reported per operation.
+ * With -save the results are written to a file, and with -baseline they are compared to a file written before (benchmarks/baseline.txt is the reference of the repository),
+ * the program then exits with status 1 if a benchmark is slower than the baseline by more than the tolerance (10% by default).
+ * The corpus only depends on fixed seeds, so the results of two versions of the code can be compared, as long as they run on the same machine with the same system properties.
+ */
+public class Benchmark {
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 10;
+	private static final long ROUND_NANOS = 200_000_000L; // minimum duration of a round
+	private static final int HUGE_SIZE = 10000; // minimum number of states of the huge belief state
+	private static volatile long sink; // consumes the results of the benchmarks so the JIT does not remove them
+
+	/**
+	 * A benchmark: each call of the operation runs it a number of times and returns this number
+	 */
+	private static class Case {
+		private final String name;
+		private final LongSupplier operation;
+
+		private Case(String name, LongSupplier operation) {
+			this.name = name;
+			this.operation = operation;
+		}
+	}
+
+	/**
+	 * Result of a benchmark
+	 */
+	private static class Result {
+		private final double nanos; // mean time per operation
+		private final double error; // standard deviation of the mean times of the rounds
+		private final double bytes; // mean bytes allocated per operation
+
+		private Result(double nanos, double error, double bytes) {
+			this.nanos = nanos;
+			this.error = error;
+			this.bytes = bytes;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		String filter = "", save = null, baseline = null;
+		double tolerance = 10;
+		for(int i = 0; i + 1 < args.length; i += 2) {
+			switch(args[i]) {
+			case "-filter": filter = args[i + 1]; break;
+			case "-save": save = args[i + 1]; break;
+			case "-baseline": baseline = args[i + 1]; break;
+			case "-tolerance": tolerance = Double.parseDouble(args[i + 1]); break;
+			default: throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+		AI.setVerbose(false);
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		for(Case c: Benchmark.cases()) {
+			if(c.name.startsWith(filter)) {
+				Result result = Benchmark.run(c);
+				results.put(c.name, result);
+				System.out.printf("%-40s %14.1f ns/op  +- %10.1f  %12.1f B/op%n", c.name, result.nanos, result.error, result.bytes);
+			}
+		}
+		if(save != null) {
+			Benchmark.save(results, Paths.get(save));
+		}
+		if(baseline != null && Benchmark.compare(results, Benchmark.load(Paths.get(baseline)), tolerance)) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Build the benchmarks. The corpus contains boards of every stage of the game, and belief states of small, medium and huge size
+	 * on the turn of each player.
+	 */
+	private static List<Case> cases() {
+		List<Case> cases = new ArrayList<Case>();
+		GameState[] boards = Benchmark.boards(1024, 1);
+		cases.add(new Case("gamestate.putPiece+undoPiece", () -> {
+			long count = 0;
+			for(GameState board: boards) {
+				for(int column = 0; column < 7; column++) {
+					if(!board.isFull(column)) {
+						board.putPiece(column);
+						board.undoPiece(column);
+						count++;
+					}
+				}
+			}
+			return count;
+		}));
+		cases.add(new Case("gamestate.checkWin", () -> {
+			long wins = 0;
+			for(GameState board: boards) {
+				for(int column = 0; column < 7; column++) {
+					int row = board.height(column) - 1;
+					if(row >= 0 && board.checkWin(row, column)) {
+						wins++;
+					}
+				}
+			}
+			sink += wins;
+			return boards.length * 7;
+		}));
+		cases.add(new Case("gamestate.evaluation", () -> {
+			long sum = 0;
+			for(GameState board: boards) {
+				sum += board.evaluation();
+			}
+			sink += sum;
+			return boards.length;
+		}));
+		cases.add(new Case("opponent.heuristicValues", () -> {
+			float[] values = new float[7];
+			float sum = 0;
+			for(GameState board: boards) {
+				ProbabilisticOpponentAI.heuristicValues(board, values);
+				sum += values[3];
+			}
+			sink += (long) sum;
+			return boards.length;
+		}));
+
+		BeliefState[] sizes = Benchmark.beliefStates();
+		String[] names = {"small", "medium", "huge"};
+		for(int i = 0; i < sizes.length; i++) {
+			BeliefState aiTurn = sizes[i];
+			Results moved = aiTurn.putPiecePlayer(aiTurn.getMoves().get(0));
+			BeliefState opponentTurn = Benchmark.largest(moved);
+			Results predicted = opponentTurn.predict();
+			GameState observed = Benchmark.observation(predicted);
+			String suffix = "." + names[i] + "(" + aiTurn.size() + "/" + opponentTurn.size() + ")";
+			cases.add(new Case("belief.putPiecePlayer" + suffix, () -> {
+				long count = 0;
+				for(int column: aiTurn.getMoves()) {
+					sink += aiTurn.putPiecePlayer(column).size();
+					count++;
+				}
+				return count;
+			}));
+			cases.add(new Case("belief.predict" + suffix, () -> {
+				sink += opponentTurn.predict().size();
+				return 1;
+			}));
+			cases.add(new Case("belief.filter" + suffix, () -> {
+				sink += BeliefState.filter(predicted, observed).size();
+				return 1;
+			}));
+			cases.add(new Case("belief.canonicalKey" + suffix, () -> {
+				sink += aiTurn.canonicalKey();
+				return 1;
+			}));
+			if(i < sizes.length - 1) {
+				cases.add(new Case("ai.findNextMove" + suffix, () -> {
+					AI.clearCache();
+					sink += AI.findNextMove(aiTurn);
+					return 1;
+				}));
+			}
+		}
+		return cases;
+	}
+
+	/**
+	 * Generate boards by playing random moves from the empty board
+	 * @param count number of boards
+	 * @param seed seed of the moves
+	 * @return boards with 0 to 30 pieces which are not game over
+	 */
+	private static GameState[] boards(int count, long seed) {
+		SplittableRandom random = new SplittableRandom(seed);
+		GameState[] boards = new GameState[count];
+		for(int i = 0; i < count; i++) {
+			GameState board = new GameState();
+			int pieces = random.nextInt(31);
+			for(int piece = 0; piece < pieces && !board.isGameOver(); piece++) {
+				int column = random.nextInt(7);
+				if(!board.isFull(column)) {
+					board.putPiece(column);
+				}
+			}
+			if(board.isGameOver()) {
+				i--;
+				continue;
+			}
+			boards[i] = board;
+		}
+		return boards;
+	}
+
+	/**
+	 * Build belief states on the turn of the AI: the small and medium ones come from games where the AI plays at random,
+	 * and the huge one is the union of all the results of all the moves of each player from the medium one, until it is large enough.
+	 * @return the small, medium and huge belief states
+	 */
+	private static BeliefState[] beliefStates() {
+		BeliefState small = null, medium = null;
+		for(long seed = 0; seed < 16; seed++) {
+			SplittableRandom random = new SplittableRandom(seed);
+			GameDisplay display = new GameDisplay();
+			BeliefState beliefState = new BeliefState();
+			beliefState.add(display.getState().copy());
+			ProbabilisticOpponentAI opponent = new ProbabilisticOpponentAI(seed);
+			while(!display.getGameOver()) {
+				List<Integer> moves = beliefState.getMoves();
+				int move = moves.get(random.nextInt(moves.size()));
+				display.move(move + 1);
+				beliefState.setStates(BeliefState.filter(beliefState.putPiecePlayer(move), display.getState()));
+				if(display.getGameOver())
+					break;
+				display.move(1 + opponent.decision(display.getState()));
+				beliefState.setStates(BeliefState.filter(beliefState.predict(), display.getState()));
+				if(display.getGameOver())
+					break;
+				if(small == null && beliefState.size() >= 20 && beliefState.size() < 50) {
+					small = beliefState.copy();
+				}
+				if(medium == null || beliefState.size() > medium.size()) {
+					medium = beliefState.copy();
+				}
+			}
+		}
+		BeliefState huge = medium;
+		while(huge.size() < HUGE_SIZE) {
+			BeliefState opponentTurn = new BeliefState(huge.visible(), huge.played() + 1);
+			for(int column = 0; column < 7; column++) {
+				Benchmark.addAll(opponentTurn, huge.putPiecePlayer(column), true);
+			}
+			huge = new BeliefState(huge.visible(), huge.played() + 2);
+			Benchmark.addAll(huge, opponentTurn.predict(), false);
+		}
+		return new BeliefState[] {small, medium, huge};
+	}
+
+	/**
+	 * Add the states of some results where the game goes on and where it is the turn of a given player (a column full in some states is only played in the other ones)
+	 */
+	private static void addAll(BeliefState union, Results results, boolean turn) {
+		for(BeliefState result: results) {
+			for(GameState state: result) {
+				if(!state.isGameOver() && state.turn() == turn) {
+					union.add(state);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a state whose percept selects one of the largest belief states of some results, as an observation for filter
+	 */
+	private static GameState observation(Results results) {
+		List<BeliefState> groups = new ArrayList<BeliefState>();
+		for(BeliefState result: results) {
+			groups.add(result);
+		}
+		groups.sort((a, b) -> Integer.compare(b.size(), a.size()));
+		for(BeliefState group: groups) {
+			for(GameState state: group) {
+				long percept = GameState.BOARD_MASK;
+				if(!state.isGameOver()) {
+					percept = 0;
+					for(int column = 0; column < 7; column++) {
+						percept |= BeliefState.visibleSquares(state, column);
+					}
+				}
+				if(results.get(percept) != null)
+					return state;
+			}
+		}
+		throw new IllegalStateException("no observation selects a belief state");
+	}
+
+	private static BeliefState largest(Results results) {
+		BeliefState largest = null;
+		for(int i = 0; i < results.size(); i++) {
+			if(largest == null || results.result(i).size() > largest.size()) {
+				largest = results.result(i);
+			}
+		}
+		return largest;
+	}
+
+	/**
+	 * Run a benchmark: warm up, then measure the time and the allocations of several rounds
+	 */
+	private static Result run(Case c) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		for(int round = 0; round < WARMUP_ROUNDS; round++) {
+			Benchmark.round(c);
+		}
+		double[] times = new double[ROUNDS];
+		long totalBytes = 0, totalOperations = 0;
+		for(int round = 0; round < ROUNDS; round++) {
+			long bytes = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			long operations = Benchmark.round(c);
+			times[round] = (double) (System.nanoTime() - start) / operations;
+			totalBytes += threads.getThreadAllocatedBytes(thread) - bytes;
+			totalOperations += operations;
+		}
+		double mean = 0, variance = 0;
+		for(double time: times) {
+			mean += time / ROUNDS;
+		}
+		for(double time: times) {
+			variance += (time - mean) * (time - mean) / (ROUNDS - 1);
+		}
+		return new Result(mean, Math.sqrt(variance), (double) totalBytes / totalOperations);
+	}
+
+	/**
+	 * Run the operation of a benchmark until the duration of a round is reached
+	 * @return the number of operations
+	 */
+	private static long round(Case c) {
+		long start = System.nanoTime(), operations = 0;
+		do {
+			operations += c.operation.getAsLong();
+		} while(System.nanoTime() - start < ROUND_NANOS);
+		return operations;
+	}
+
+	private static void save(Map<String, Result> results, Path file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		lines.add("# java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors() + " processors, " + System.getProperty("os.arch"));
+		lines.add("# benchmark ns/op error B/op");
+		for(Map.Entry<String, Result> entry: results.entrySet()) {
+			Result result = entry.getValue();
+			lines.add(String.format("%s %.1f %.1f %.1f", entry.getKey(), result.nanos, result.error, result.bytes));
+		}
+		if(file.getParent() != null) {
+			Files.createDirectories(file.getParent());
+		}
+		Files.write(file, lines, StandardCharsets.UTF_8);
+	}
+
+	private static Map<String, Result> load(Path file) throws IOException {
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		for(String line: Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			if(line.startsWith("#") || line.isBlank())
+				continue;
+			String[] fields = line.split(" ");
+			results.put(fields[0], new Result(Double.parseDouble(fields[1]), Double.parseDouble(fields[2]), Double.parseDouble(fields[3])));
+		}
+		return results;
+	}
+
+	/**
+	 * Print the results next to the baseline
+	 * @return true if a benchmark is slower than its baseline by more than the tolerance
+	 */
+	private static boolean compare(Map<String, Result> results, Map<String, Result> baseline, double tolerance) {
+		boolean regression = false;
+		System.out.println();
+		System.out.printf("%-40s %10s %10s %8s %12s%n", "benchmark (vs baseline)", "ns/op", "baseline", "change", "B/op change");
+		for(Map.Entry<String, Result> entry: results.entrySet()) {
+			Result before = baseline.get(entry.getKey());
+			if(before == null)
+				continue;
+			Result after = entry.getValue();
+			double change = 100 * (after.nanos - before.nanos) / before.nanos;
+			boolean slower = change > tolerance;
+			regression |= slower;
+			System.out.printf("%-40s %10.1f %10.1f %+7.1f%% %+12.1f%s%n", entry.getKey(), after.nanos, before.nanos, change, after.bytes - before.bytes, slower? "  REGRESSION": "");
+		}
+		return regression;
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * Exact solver of the states of the end of the game, seen as games of perfect information: each player knows the whole board and plays perfectly.
+ * The solver is a negamax with alpha-beta pruning working directly on the bitboards of GameState (the pieces of the player to play and the occupied squares).
+ * The moves are ordered by the number of winning squares they create, then from the center to the edges, and the moves which allow the other player to win immediately are never searched.
+ * The values are only win, draw or loss (weak solving), and are kept in a transposition table shared by all threads, one long per entry.
+ */
+public class EndgameSolver {
+	public static final int WIN = 1, DRAW = 0, LOSS = -1;
+	private static final int LOWER = 1, UPPER = 2, EXACT = 3;
+	private static final int[] ORDER = {3, 2, 4, 1, 5, 0, 6};
+	private static final int SQUARES = GameState.WIDTH * GameState.HEIGHT;
+	private static final int DEADLINE_CHECK = 1023; // mask of the number of nodes between two checks of the deadline
+	// entries: the key of the position (49 bits) followed by the bound (2 bits) and the value + 1 (2 bits), 0 for an empty entry
+	private static final long[] TABLE = new long[(int) Long.highestOneBit(Math.max(2, Math.min((Long.getLong("ai.solver.mb", 16) << 20) / 8, 1L << 30)))];
+
+	private final long deadline;
+	private long nodes;
+
+	/**
+	 * Create a solver without deadline
+	 */
+	public EndgameSolver() {
+		this(0);
+	}
+
+	/**
+	 * Create a solver which stops at a deadline
+	 * @param deadline value of System.nanoTime() at which solve throws AI.SearchTimeoutException, 0 for no deadline
+	 */
+	public EndgameSolver(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Solve a state of the game which is not over
+	 * @param state the state
+	 * @return WIN, DRAW or LOSS for the player whose turn it is
+	 */
+	public int solve(GameState state) {
+		long mask = state.yellow() | state.red();
+		long current = state.turn()? state.yellow(): state.red();
+		return this.negamax(current, mask, Long.bitCount(mask), LOSS, WIN);
+	}
+
+	/**
+	 * @return the number of positions visited by this solver
+	 */
+	public long nodes() {
+		return this.nodes;
+	}
+
+	/**
+	 * Negamax with alpha-beta pruning
+	 * @param current the pieces of the player to play
+	 * @param mask the occupied squares
+	 * @param moves number of pieces on the board
+	 * @return the value of the position for the player to play, exact if it is strictly between alpha and beta, and a bound otherwise
+	 */
+	private int negamax(long current, long mask, int moves, int alpha, int beta) {
+		if((++this.nodes & DEADLINE_CHECK) == 0 && this.deadline != 0 && System.nanoTime() - this.deadline > 0)
+			throw AI.SearchTimeoutException.INSTANCE;
+		if(moves == SQUARES)
+			return DRAW; // the board is full without winner
+		long possible = (mask + GameState.BOTTOM) & GameState.BOARD_MASK;
+		if((EndgameSolver.winningSquares(current, mask) & possible) != 0)
+			return WIN;
+		long opponentWins = EndgameSolver.winningSquares(current ^ mask, mask);
+		long forced = possible & opponentWins;
+		if(forced != 0) {
+			if((forced & (forced - 1)) != 0)
+				return LOSS; // two winning squares of the opponent cannot be blocked at once
+			possible = forced;
+		}
+		possible &= ~(opponentWins >>> 1); // do not play below a winning square of the opponent
+		if(possible == 0)
+			return moves + 1 == SQUARES? DRAW: LOSS; // every move allows the opponent to win, unless the move fills the board
+		if(moves + 2 >= SQUARES)
+			return DRAW; // neither this move nor the last one can win
+
+		long key = current + mask + GameState.BOTTOM; // unique for each position with the player to play
+		int index = (int) GameState.mix(key) & (TABLE.length - 1);
+		long entry = TABLE[index];
+		if(entry != 0 && entry >>> 4 == key) {
+			int value = (int) (entry & 3) - 1;
+			int bound = (int) (entry >>> 2) & 3;
+			if(bound == EXACT)
+				return value;
+			if(bound == LOWER)
+				alpha = Math.max(alpha, value);
+			else
+				beta = Math.min(beta, value);
+			if(alpha >= beta)
+				return value;
+		}
+
+		// moves creating the most winning squares first, then from the center to the edges
+		long[] ordered = new long[GameState.WIDTH];
+		int[] scores = new int[GameState.WIDTH];
+		int count = 0;
+		for(int column: ORDER) {
+			long move = possible & GameState.columnMask(column);
+			if(move != 0) {
+				int score = Long.bitCount(EndgameSolver.winningSquares(current | move, mask) & ~(mask | move));
+				int i = count++;
+				for(; i > 0 && scores[i - 1] < score; i--) {
+					ordered[i] = ordered[i - 1];
+					scores[i] = scores[i - 1];
+				}
+				ordered[i] = move;
+				scores[i] = score;
+			}
+		}
+
+		int alphaOrig = alpha;
+		int best = LOSS;
+		for(int i = 0; i < count; i++) {
+			int value = -this.negamax(current ^ mask, mask | ordered[i], moves + 1, -beta, -alpha);
+			if(value > best) {
+				best = value;
+				if(value > alpha) {
+					alpha = value;
+					if(alpha >= beta)
+						break;
+				}
+			}
+		}
+		int bound = best <= alphaOrig? UPPER: best >= beta? LOWER: EXACT;
+		TABLE[index] = key << 4 | bound << 2 | (best + 1);
+		return best;
+	}
+
+	/**
+	 * Returns the empty squares which would give four aligned pieces to a player
+	 * @param position the pieces of the player
+	 * @param mask the occupied squares
+	 * @return the winning squares of the player
+	 */
+	static long winningSquares(long position, long mask) {
+		long r = (position << 1) & (position << 2) & (position << 3); // vertical
+		r |= EndgameSolver.lineSquares(position, GameState.H1); // horizontal
+		r |= EndgameSolver.lineSquares(position, GameState.HEIGHT); // diagonal going down to the right
+		r |= EndgameSolver.lineSquares(position, GameState.H1 + 1); // diagonal going up to the right
+		return r & (GameState.BOARD_MASK ^ mask);
+	}
+
+	/**
+	 * Returns the squares completing three pieces of a player in a direction, with the three pieces on the same side of the square or on both sides
+	 * @param position the pieces of the player
+	 * @param shift distance between two squares of the direction in the layout of the bitboards
+	 */
+	private static long lineSquares(long position, int shift) {
+		long p = (position << shift) & (position << 2 * shift);
+		long r = p & (position << 3 * shift);
+		r |= p & (position >>> shift);
+		p = (position >>> shift) & (position >>> 2 * shift);
+		r |= p & (position << shift);
+		r |= p & (position >>> 3 * shift);
+		return r;
+	}
+}
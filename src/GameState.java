@@ -1,35 +1,98 @@
 /**
  * Class which keep tracks of the state of the game (content of the board). In this class, all elements are visible (as in the standard version of connected 4).
+ * The board is stored as two bitboards (one per player) using a column major layout: the square (row, column) is the bit column * 7 + row.
+ * The 7th bit of each column is always empty, which allows to detect alignments with shifts without wrapping from one column to the next.
  */
 
 public class GameState implements Comparable<GameState> {
-	private byte[] board;
+	static final int WIDTH = 7;
+	static final int HEIGHT = 6;
+	static final int H1 = HEIGHT + 1;
+	static final long BOTTOM = bottomMask();
+	static final long BOARD_MASK = BOTTOM * ((1L << HEIGHT) - 1);
+	private static final int FULL_HEIGHTS = fullHeights();
+	private static final int GAME_OVER_BIT = 49;
+	private static final int TURN_BIT = 50;
+	private static final long[][] ZOBRIST = zobristTable(); // one random key per player and per square
+	private static final long ZOBRIST_TURN = GameState.mix(WIDTH * H1);
+	private static final long ZOBRIST_GAME_OVER = GameState.mix(WIDTH * H1 + 1);
+	private static final long[][] COLUMN_ZOBRIST = columnZobristTable(); // Zobrist key of each encoding of a column
+	static final int[][] POSITIONAL_SCORE = {
+			{1, 2, 3, 5, 3, 2, 1},
+			{2, 4, 6, 8, 6, 4, 2},
+			{5, 8, 11, 13, 11, 8, 5},
+			{5, 8, 11, 13, 11, 8, 5},
+			{4, 6, 8, 10, 8, 6, 4},
+			{3, 4, 5, 7, 5, 4, 3}
+	};
+	private static final long ROW_GATHER = rowGather(); // multiplier moving the bit of each column of a row (bits 0, 7, ..., 42) to the bits 36 to 42
+	private static final int[] BASE3 = base3(); // value in base 3 of the digits 0 and 1 given by the bits of an index
+	private static final int[][] ROW_SCORES = rowScores(); // evaluation of the pieces of a row, indexed by row and by content of the row in base 3
+	private static final int[] COLUMN_SCORES = columnScores(); // evaluation of the vertical lines of a column, indexed by encoding of the column
+
+	private long yellow; // pieces with content 1
+	private long red; // pieces with content 2
+	private int heights; // number of pieces of each column, 3 bits per column
+	private boolean gameOver;
+	private boolean turn;
+	private long hash; // Zobrist key of the pieces, the turn and the game over flag
 	private float proba;
-	
+
 	/**
 	 * Constructor which construct a state corresponding to an empty game (no pieces on the board)
 	 */
 	public GameState() {
-		this.board = new byte[11];
 		this.proba = 1;
-		for(int i = 0; i < 11; i++) {
-			this.board[i] = Byte.MIN_VALUE;
-		}
 	}
-	
+
 	/**
 	 * Construct a copy of a given state. The pieces are placed in the same way.
 	 * @return a state corresponding to a copy of the game
 	 */
 	public GameState copy() {
 		GameState copy = new GameState();
-		for(int i = 0; i < 11; i++) {
-			copy.board[i] = this.board[i];
-		}
+		copy.yellow = this.yellow;
+		copy.red = this.red;
+		copy.heights = this.heights;
+		copy.gameOver = this.gameOver;
+		copy.turn = this.turn;
+		copy.hash = this.hash;
 		copy.proba = this.proba;
 		return copy;
 	}
-	
+
+	/**
+	 * Construct the state corresponding to a given encoding (see key())
+	 * @param key encoding of the state
+	 * @param proba probability of the state
+	 */
+	GameState(long key, float proba) {
+		this.load(key);
+		this.proba = proba;
+	}
+
+	/**
+	 * Replace the pieces, the turn and the game over flag by the ones of a given encoding (see key()). The probability is left unchanged.
+	 * This allows to reuse a single state when iterating over encoded states.
+	 * @param key encoding of the state
+	 */
+	void load(long key) {
+		long mask = 0;
+		int heights = 0;
+		for(int column = 0; column < WIDTH; column++) {
+			int code = (int) (key >>> (column * H1)) & 0x7F;
+			int height = 31 - Integer.numberOfLeadingZeros(code);
+			mask |= ((1L << height) - 1) << (column * H1);
+			heights |= height << (3 * column);
+		}
+		this.red = (key & BOARD_MASK) & mask;
+		this.yellow = mask & ~this.red;
+		this.heights = heights;
+		this.gameOver = ((key >>> GAME_OVER_BIT) & 1) != 0;
+		this.turn = ((key >>> TURN_BIT) & 1) != 0;
+		this.hash = GameState.hashOf(key);
+	}
+
 	/**
 	 * Returns the content of a given square of the game
 	 * @param row index of the row (from 0 to 5)
@@ -37,148 +100,274 @@ public class GameState implements Comparable<GameState> {
 	 * @return 0 if the square is empty, 1 if it contains a yellow piece and 2 if it contains a red piece.
 	 */
 	public int content(int row, int column) {
-		int pos = row * 14 + column * 2;
-		int index = pos / 8;
-		pos = pos % 8;
-		return (((this.board[index] + 128) >> pos) % 4);
+		long bit = 1L << (column * H1 + row);
+		if((this.yellow & bit) != 0)
+			return 1;
+		if((this.red & bit) != 0)
+			return 2;
+		return 0;
 	}
-	
+
 	/**
 	 * return the probability of the state. This probability is meaningful only if the state is part of a belief state.
 	 * @return the probability that a given state occurs in a given belief state
 	 */
-	
+
 	public float proba() {
 		return this.proba;
 	}
-	
+
 	public void addProba(float addi) {
 		this.proba += addi;
 	}
-	
+
 	public void multProba(float multi) {
 		this.proba *= multi;
 	}
-	
+
 	public void setProba(float proba) {
 		this.proba = proba;
 	}
-	
+
+	/**
+	 * Returns the number of pieces in a given column
+	 * @param column the index of the column
+	 * @return the index of the row where the next piece of this column will land
+	 */
+	public int height(int column) {
+		return (this.heights >>> (3 * column)) & 7;
+	}
+
+	/**
+	 * Returns the mask of the squares of a column in the layout of the bitboards
+	 * @param column the index of the column
+	 * @return a mask containing the 6 squares of the column
+	 */
+	static long columnMask(int column) {
+		return ((1L << HEIGHT) - 1) << (column * H1);
+	}
+
+	/**
+	 * @return bitboard of the yellow pieces (content 1)
+	 */
+	long yellow() {
+		return this.yellow;
+	}
+
+	/**
+	 * @return bitboard of the red pieces (content 2)
+	 */
+	long red() {
+		return this.red;
+	}
+
 	/**
 	 * check if a given column is full (contains 6 pieces of any kind)
 	 * @param column the index of the column
 	 * @return true if the column is full, and false otherwise
 	 */
 	public boolean isFull(int column) {
-		return this.content(5, column) != 0;
+		return this.height(column) == HEIGHT;
 	}
-	
+
 	/**
 	 * check if all columns are full (meaning that the game is over)
 	 * @return true if all columns are full
 	 */
 	public boolean isFull() {
-		for(int column = 0; column < 7; column++) {
-			if(!this.isFull(column))
-				return false;
-		}
-		return true;
+		return this.heights == FULL_HEIGHTS;
 	}
-	
+
 	public void set(int row, int column, int val) {
-		int pos = row * 14 + column * 2;
-		int index = pos / 8;
-		pos = pos % 8;
-		int delta = ((val % 4) - this.content(row, column)) << pos;
-		this.board[index] = (byte) (this.board[index] + delta);
+		int square = column * H1 + row;
+		long bit = 1L << square;
+		if((this.yellow & bit) != 0)
+			this.hash ^= ZOBRIST[0][square];
+		if((this.red & bit) != 0)
+			this.hash ^= ZOBRIST[1][square];
+		this.yellow &= ~bit;
+		this.red &= ~bit;
+		switch(val % 4) {
+		case 1: this.yellow |= bit; this.hash ^= ZOBRIST[0][square]; break;
+		case 2: this.red |= bit; this.hash ^= ZOBRIST[1][square]; break;
+		default: break;
+		}
+		long columnBits = ((this.yellow | this.red) >>> (column * H1)) & ((1L << HEIGHT) - 1);
+		int height = 64 - Long.numberOfLeadingZeros(columnBits);
+		this.heights = (this.heights & ~(7 << (3 * column))) | (height << (3 * column));
 	}
-	
+
 	/**
 	 * check if the game is over i.e., either the game is full or one of the player won
 	 * @return
 	 */
 	public boolean isGameOver() {
-		return ((this.board[10] + 128) >> 4) % 2 > 0? true: false;
+		return this.gameOver;
 	}
-	
+
 	public boolean putPiece(int column) {
-		if(this.isGameOver())
+		if(this.gameOver)
 			return false;
-		if(this.content(5, column) != 0)
+		int row = this.height(column);
+		if(row == HEIGHT)
 			return false;
-		int row = 0;
-		while(this.content(row, column) != 0)
-			row++;
-		this.set(row, column, this.turn()? 1: 2);
+		int square = column * H1 + row;
+		long bit = 1L << square;
+		if(this.turn) {
+			this.yellow |= bit;
+			this.hash ^= ZOBRIST[0][square];
+		}
+		else {
+			this.red |= bit;
+			this.hash ^= ZOBRIST[1][square];
+		}
+		this.heights += 1 << (3 * column);
 		if(this.checkWin(row, column)) {
-			this.board[10] += 16;
+			this.gameOver = true;
+			this.hash ^= ZOBRIST_GAME_OVER;
 		}
 		else
 			this.changeTurn();
 		return true;
 	}
-	
-	
+
+	/**
+	 * Undo the last piece played in a given column. This reverts a successful call to putPiece (including the game over and turn information), which allows to explore moves without copying the state.
+	 * @param column index of the column where the last piece was played
+	 */
+	public void undoPiece(int column) {
+		if(this.gameOver) {
+			this.gameOver = false;
+			this.hash ^= ZOBRIST_GAME_OVER;
+		}
+		else
+			this.changeTurn();
+		this.heights -= 1 << (3 * column);
+		int square = column * H1 + this.height(column);
+		long bit = 1L << square;
+		this.hash ^= ZOBRIST[(this.yellow & bit) != 0? 0: 1][square];
+		this.yellow &= ~bit;
+		this.red &= ~bit;
+	}
+
+
 	public boolean turn() {
-		return ((this.board[10] + 128) >> 5) % 2 > 0? true: false;
+		return this.turn;
 	}
-	
+
 	public void changeTurn() {
-		if(this.turn()) {
-			this.board[10] = (byte) (this.board[10] - 32);
-		}
-		else {
-			this.board[10] = (byte) (this.board[10] + 32);
-		}
+		this.turn = !this.turn;
+		this.hash ^= ZOBRIST_TURN;
 	}
-	
+
+	/**
+	 * check if the player whose turn it is has four aligned pieces. Since a game stops at the first alignment, this is equivalent to checking the lines going through the last piece played.
+	 * @param row index of the row of the last piece played
+	 * @param column index of the column of the last piece played
+	 * @return true if the player to play has four aligned pieces
+	 */
 	public boolean checkWin(int row, int column) {
-		int turn = this.turn()? 1: 2;
-		
-		int south = 0;
-		while(row - south > 0 && this.content(row - south - 1, column) == turn) {
-			south++;
-		}
-		if(south > 2) {
+		return GameState.alignment(this.turn? this.yellow: this.red);
+	}
+
+	/**
+	 * check if a bitboard contains four aligned pieces
+	 * @param pos bitboard of the pieces of one player
+	 * @return true if there is an alignment of four pieces
+	 */
+	static boolean alignment(long pos) {
+		long m = pos & (pos >>> H1); // horizontal
+		if((m & (m >>> (2 * H1))) != 0)
 			return true;
-		}
-		
-		int west = 0;
-		while(west < column && this.content(row, column - west - 1) == turn) {
-			west++;
-		}
-		int est = 0;
-		while(column + est < 6 && this.content(row, column + est + 1) == turn) {
-			est++;
-		}
-		if(est + west > 2) {
+		m = pos & (pos >>> HEIGHT); // diagonal going down to the right
+		if((m & (m >>> (2 * HEIGHT))) != 0)
 			return true;
-		}
-		int southWest = 0;
-		while(southWest < row && southWest < column  && this.content(row - southWest - 1, column - southWest - 1) == turn) {
-			southWest++;
-		}
-		int northEst = 0;
-		while(row + northEst < 5 && column + northEst < 6 && this.content(row + northEst + 1, column + northEst + 1) == turn) {
-			northEst++;
-		}
-		if(southWest + northEst > 2) {
-			return true;
-		}
-		int southEst = 0;
-		while(southEst < row && column + southEst < 6 && this.content(row - southEst - 1, column + southEst + 1) == turn) {
-			southEst++;
-		}
-		int northWest = 0;
-		while(row + northWest < 5 && northWest < column  && this.content(row + northWest + 1, column - northWest - 1) == turn) {
-			northWest++;
-		}
-		if(northWest + southEst > 2) {
+		m = pos & (pos >>> (H1 + 1)); // diagonal going up to the right
+		if((m & (m >>> (2 * (H1 + 1)))) != 0)
 			return true;
+		m = pos & (pos >>> 1); // vertical
+		return (m & (m >>> 2)) != 0;
+	}
+
+	/**
+	 * Returns an encoding of the state (pieces, game over and turn) which is unique as long as the pieces respect the gravity. The probability is not part of the encoding.
+	 * In each column, the pieces are encoded by the red pieces plus a marker bit placed above the highest piece.
+	 * @return a 51 bits encoding of the state
+	 */
+	public long key() {
+		long key = this.red + (this.yellow | this.red) + BOTTOM;
+		if(this.gameOver)
+			key |= 1L << GAME_OVER_BIT;
+		if(this.turn)
+			key |= 1L << TURN_BIT;
+		return key;
+	}
+
+	/**
+	 * Returns the Zobrist key of the state, which is updated incrementally each time the board changes. The probability is not part of the key.
+	 * @return a 64 bits hash of the pieces, the turn and the game over flag
+	 */
+	public long hash() {
+		return this.hash;
+	}
+
+	/**
+	 * Compute the Zobrist key of the state corresponding to a given encoding, without decoding it
+	 * @param key encoding of the state (see key())
+	 * @return the value hash() would return for that state
+	 */
+	static long hashOf(long key) {
+		long hash = 0;
+		for(int column = 0; column < WIDTH; column++) {
+			hash ^= COLUMN_ZOBRIST[column][(int) (key >>> (column * H1)) & 0x7F];
 		}
-		return false;
+		if(((key >>> GAME_OVER_BIT) & 1) != 0)
+			hash ^= ZOBRIST_GAME_OVER;
+		if(((key >>> TURN_BIT) & 1) != 0)
+			hash ^= ZOBRIST_TURN;
+		return hash;
+	}
+
+	/**
+	 * Check if the state corresponding to a given encoding is over
+	 * @param key encoding of the state (see key())
+	 * @return true if one of the players won
+	 */
+	static boolean isGameOver(long key) {
+		return ((key >>> GAME_OVER_BIT) & 1) != 0;
+	}
+
+	/**
+	 * Returns the turn of the state corresponding to a given encoding
+	 * @param key encoding of the state (see key())
+	 * @return true if the next to play is the opponent
+	 */
+	static boolean turn(long key) {
+		return ((key >>> TURN_BIT) & 1) != 0;
+	}
+
+	/**
+	 * Check if a column is full in the state corresponding to a given encoding
+	 * @param key encoding of the state (see key())
+	 * @param column the index of the column
+	 * @return true if the column contains 6 pieces
+	 */
+	static boolean isFull(long key, int column) {
+		return ((key >>> (column * H1 + HEIGHT)) & 1) != 0;
+	}
+
+	/**
+	 * Mix the bits of a value (finalizer of SplitMix64), used to build well distributed keys
+	 * @param x the value to mix
+	 * @return the mixed value
+	 */
+	static long mix(long x) {
+		x += 0x9E3779B97F4A7C15L;
+		x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+		x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+		return x ^ (x >>> 31);
 	}
-	
+
 	public String toString() {
 		String s = "";
 		for(int i = 5; i >= 0; i--) {
@@ -195,16 +384,159 @@ public class GameState implements Comparable<GameState> {
 		s += "Game Over: " + (this.isGameOver()? "Yes": "No") + "\nNext: " + (this.turn()? "Yellow": "Red") + " Proba: " + this.proba;
 		return s;
 	}
-	
+
+	/**
+	 * Evaluate the state for AI.evaluateNonTerminalState. For each yellow piece: the horizontal line and the vertical line starting at the piece
+	 * (see lineScore) and its positional score; for each red piece: minus the horizontal line starting at the piece and minus its positional score.
+	 * The rows and the columns are scored with lookup tables, so the board is not scanned square by square.
+	 * @return the evaluation of the state
+	 */
+	public int evaluation() {
+		int evaluation = 0;
+		for(int row = 0; row < HEIGHT; row++) {
+			evaluation += ROW_SCORES[row][BASE3[GameState.rowBits(this.yellow, row)] + 2 * BASE3[GameState.rowBits(this.red, row)]];
+		}
+		for(int column = 0; column < WIDTH; column++) {
+			int height = (this.heights >>> (3 * column)) & 7;
+			evaluation += COLUMN_SCORES[(int) (this.red >>> (column * H1)) & ((1 << height) - 1) | 1 << height];
+		}
+		return evaluation;
+	}
+
+	/**
+	 * Gather the squares of a row of a bitboard
+	 * @param board the bitboard
+	 * @param row index of the row
+	 * @return the squares of the row, the bit i corresponding to the column i
+	 */
+	private static int rowBits(long board, int row) {
+		// the products of the 7 bits by the 7 powers of the multiplier are all distinct powers of 2, so there is no carry
+		return (int) ((((board >>> row) & BOTTOM) * ROW_GATHER) >>> 36) & 0x7F;
+	}
+
+	/**
+	 * Score a line of 4 squares starting at a piece, towards the increasing indices of a line of squares: 0 if the line leaves the board or contains a piece of the other player,
+	 * and otherwise a value depending on the number of pieces of the player in the line and on the number of empty squares just before and just after the line.
+	 * The value is signed for the player 2, and the evaluation subtracts it, so three or two red pieces in a line add to the evaluation.
+	 * @param line content of the squares of the line (0 empty, 1 yellow, 2 red)
+	 * @param start index of the first square of the line
+	 * @param player content of the piece at the start
+	 * @return the score of the line
+	 */
+	private static int lineScore(int[] line, int start, int player) {
+		if(start + 3 >= line.length)
+			return 0; // out of bounds
+		int count = 0;
+		for(int i = start; i < start + 4; i++) {
+			if(line[i] == player)
+				count++;
+			else if(line[i] != 0)
+				return 0; // blocked line
+		}
+		int openEnds = (start > 0 && line[start - 1] == 0? 1: 0) + (start + 4 < line.length && line[start + 4] == 0? 1: 0);
+		if(count == 3 && openEnds > 0) return player == 1? 1000: -1000; // three-in-a-row
+		if(count == 2 && openEnds > 0) return player == 1? 300: -300; // two-in-a-row
+		return count * openEnds; // general scoring for partial lines
+	}
+
 	public int compareTo(GameState toCompare) {
-		for(int i = 0; i < 11; i++) {
-			if(this.board[i] > toCompare.board[i]) {
-				return 1;
+		return Long.compare(this.key(), toCompare.key());
+	}
+
+	private static long bottomMask() {
+		long mask = 0;
+		for(int column = 0; column < WIDTH; column++) {
+			mask |= 1L << (column * H1);
+		}
+		return mask;
+	}
+
+	private static long[][] zobristTable() {
+		long[][] table = new long[2][WIDTH * H1];
+		for(int square = 0; square < WIDTH * H1; square++) {
+			table[0][square] = GameState.mix(2 * square + 0x100);
+			table[1][square] = GameState.mix(2 * square + 0x101);
+		}
+		return table;
+	}
+
+	private static long[][] columnZobristTable() {
+		long[][] table = new long[WIDTH][1 << H1];
+		for(int column = 0; column < WIDTH; column++) {
+			for(int code = 1; code < (1 << H1); code++) {
+				int height = 31 - Integer.numberOfLeadingZeros(code);
+				long hash = 0;
+				for(int row = 0; row < height; row++) {
+					hash ^= ZOBRIST[((code >>> row) & 1) != 0? 1: 0][column * H1 + row];
+				}
+				table[column][code] = hash;
 			}
-			if(this.board[i] < toCompare.board[i]) {
-				return -1;
+		}
+		return table;
+	}
+
+	private static long rowGather() {
+		long gather = 0;
+		for(int column = 0; column < WIDTH; column++) {
+			gather |= 1L << (36 - 6 * column);
+		}
+		return gather;
+	}
+
+	private static int[] base3() {
+		int[] base3 = new int[1 << WIDTH];
+		for(int bits = 0; bits < base3.length; bits++) {
+			for(int column = WIDTH - 1; column >= 0; column--) {
+				base3[bits] = 3 * base3[bits] + ((bits >>> column) & 1);
 			}
 		}
-		return 0;
+		return base3;
+	}
+
+	private static int[][] rowScores() {
+		int patterns = BASE3[(1 << WIDTH) - 1] * 2 + 1;
+		int[][] scores = new int[HEIGHT][patterns];
+		int[] line = new int[WIDTH];
+		for(int pattern = 0; pattern < patterns; pattern++) {
+			for(int column = 0, digits = pattern; column < WIDTH; column++, digits /= 3) {
+				line[column] = digits % 3;
+			}
+			for(int row = 0; row < HEIGHT; row++) {
+				for(int column = 0; column < WIDTH; column++) {
+					if(line[column] == 1) {
+						scores[row][pattern] += GameState.lineScore(line, column, 1) + POSITIONAL_SCORE[row][column];
+					}
+					else if(line[column] == 2) {
+						scores[row][pattern] -= GameState.lineScore(line, column, 2) + POSITIONAL_SCORE[row][column];
+					}
+				}
+			}
+		}
+		return scores;
+	}
+
+	private static int[] columnScores() {
+		int[] scores = new int[1 << H1];
+		int[] line = new int[HEIGHT];
+		for(int code = 1; code < scores.length; code++) {
+			int height = 31 - Integer.numberOfLeadingZeros(code);
+			for(int row = 0; row < HEIGHT; row++) {
+				line[row] = row >= height? 0: ((code >>> row) & 1) != 0? 2: 1;
+			}
+			for(int row = 0; row < height; row++) {
+				if(line[row] == 1) {
+					scores[code] += GameState.lineScore(line, row, 1);
+				}
+			}
+		}
+		return scores;
+	}
+
+	private static int fullHeights() {
+		int heights = 0;
+		for(int column = 0; column < WIDTH; column++) {
+			heights |= HEIGHT << (3 * column);
+		}
+		return heights;
 	}
 }
@@ -0,0 +1,177 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Moves of the AI precomputed for the belief states of the beginning of the game, which are the most expensive to search and are the same from one game to the next.
+ * The book is a binary file: a header (magic number, version, number of moves of the AI, depth of the search, number of entries) followed by the entries sorted by key,
+ * each one made of the canonical key of a belief state (see BeliefState.canonicalKey()), the move and the depth of the search (12 bytes).
+ * The file is memory mapped, and a belief state is found by a binary search.
+ * Usage of the generator: java -Dai.depth=depth OpeningBook file [number of moves of the AI]
+ */
+public class OpeningBook {
+	private static final int MAGIC = 0x43344F42; // "C4OB"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 20;
+	private static final int ENTRY_BYTES = 12;
+
+	private final MappedByteBuffer buffer;
+	private final int plies;
+	private final int depth;
+	private final int size;
+
+	private OpeningBook(MappedByteBuffer buffer) throws IOException {
+		if(buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException("not an opening book");
+		this.buffer = buffer;
+		this.plies = buffer.getInt(8);
+		this.depth = buffer.getInt(12);
+		this.size = buffer.getInt(16);
+		if(buffer.limit() != HEADER_BYTES + (long) this.size * ENTRY_BYTES)
+			throw new IOException("truncated opening book");
+	}
+
+	/**
+	 * Memory map an opening book
+	 * @param file path of the book
+	 * @return the opening book
+	 * @throws IOException if the file cannot be read or is not an opening book
+	 */
+	public static OpeningBook open(Path file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return new OpeningBook(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Returns the move of the book for a belief state
+	 * @param beliefState a belief state on the turn of the AI
+	 * @return the index of the column to play, or -1 if the belief state is not in the book
+	 */
+	public int move(BeliefState beliefState) {
+		long key = beliefState.canonicalKey();
+		int low = 0, high = this.size - 1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			long middleKey = this.buffer.getLong(HEADER_BYTES + middle * ENTRY_BYTES);
+			if(middleKey < key) {
+				low = middle + 1;
+			}
+			else if(middleKey > key) {
+				high = middle - 1;
+			}
+			else {
+				return this.buffer.getShort(HEADER_BYTES + middle * ENTRY_BYTES + 8);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the number of moves of the AI covered by the book
+	 */
+	public int plies() {
+		return this.plies;
+	}
+
+	/**
+	 * @return the depth of the search used to compute the moves
+	 */
+	public int depth() {
+		return this.depth;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Generate an opening book: starting from the beginning of the game, the move of each belief state is computed with AI.search,
+	 * then every belief state which may follow this move and a move of the opponent is added, until the given number of moves of the AI.
+	 * The depth of the search is the one of AI (system property ai.depth).
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1) {
+			System.out.println("usage: java -Dai.depth=depth OpeningBook file [number of moves of the AI]");
+			return;
+		}
+		Path file = Paths.get(args[0]);
+		int plies = args.length > 1? Integer.parseInt(args[1]): 3;
+		AI.setOpeningBook(null);
+		AI.setVerbose(false);
+		Map<Long, int[]> entries = new TreeMap<Long, int[]>(); // move and depth of each key, sorted as the binary search expects
+		Set<Long> seen = new HashSet<Long>();
+		ArrayDeque<BeliefState> queue = new ArrayDeque<BeliefState>();
+		BeliefState start = new BeliefState();
+		start.add(new GameState());
+		queue.add(start);
+		seen.add(start.canonicalKey());
+		int maxDepth = 0;
+		long time = System.currentTimeMillis();
+		while(!queue.isEmpty()) {
+			BeliefState beliefState = queue.poll();
+			SearchStats stats = AI.search(beliefState);
+			if(stats.move() < 0)
+				continue;
+			entries.put(beliefState.canonicalKey(), new int[] {stats.move(), stats.depth()});
+			maxDepth = Math.max(maxDepth, stats.depth());
+			int aiMoves = beliefState.played() / 2 + 1;
+			System.out.println(entries.size() + " belief states (" + aiMoves + " moves, " + queue.size() + " to do, " + (System.currentTimeMillis() - time) / 1000 + " s)");
+			if(aiMoves >= plies)
+				continue;
+			for(BeliefState opponentTurn: OpeningBook.next(beliefState.putPiecePlayer(stats.move()))) {
+				for(BeliefState next: OpeningBook.next(opponentTurn.predict())) {
+					if(seen.add(next.canonicalKey())) {
+						queue.add(next);
+					}
+				}
+			}
+		}
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(plies);
+			out.writeInt(maxDepth);
+			out.writeInt(entries.size());
+			for(Map.Entry<Long, int[]> entry: entries.entrySet()) {
+				out.writeLong(entry.getKey());
+				out.writeShort(entry.getValue()[0]);
+				out.writeShort(entry.getValue()[1]);
+			}
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+		System.out.println("wrote " + entries.size() + " belief states to " + file);
+	}
+
+	/**
+	 * Returns the belief states of some results where the game goes on, with their probabilities normalized as BeliefState.filter does during a game
+	 * (so that they have the same canonical key as in a game)
+	 */
+	private static BeliefState[] next(Results results) {
+		BeliefState[] next = new BeliefState[results.size()];
+		int size = 0;
+		for(int i = 0; i < results.size(); i++) {
+			if(results.percept(i) == GameState.BOARD_MASK)
+				continue; // the game is over
+			BeliefState filtered = BeliefState.filter(results, results.result(i).iterator().next());
+			if(filtered == results.result(i)) {
+				next[size++] = filtered;
+			}
+		}
+		return Arrays.copyOf(next, size);
+	}
+}
@@ -0,0 +1,243 @@
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.random.RandomGenerator;
+
+/**
+ * Distribution of the moves of the opponent (ProbabilisticOpponentAI) in a given state of the game.
+ * Computing a distribution requires to look two moves ahead and to compute the heuristic value of each column, and the same states are met again and again
+ * during a search, so the distributions are memoized in a bounded cache shared by all threads.
+ */
+public class OpponentPolicy {
+	private static final ClockCache CACHE = new ClockCache(Integer.getInteger("ai.policy.cache", 1 << 16));
+
+	private final int columns; // one bit for each column the opponent may play
+	private final float[] probas; // probability of each column
+	private final boolean noSafeMove; // true if every move allows the player to win immediately
+	private final int[] moves; // columns of the moves, in the order of the indices of the selector
+	private final RandomSelector selector; // weights of the moves, with its alias table built once for all the draws
+
+	private OpponentPolicy(int columns, float[] probas, boolean noSafeMove, int[] moves, RandomSelector selector) {
+		this.columns = columns;
+		this.probas = probas;
+		this.noSafeMove = noSafeMove;
+		this.moves = moves;
+		this.selector = selector;
+	}
+
+	/**
+	 * Returns the distribution of the moves of the opponent in a given state, from the cache if it has already been computed
+	 * @param game the current state of the game, which must be the turn of the opponent
+	 * @return the distribution of the moves of the opponent
+	 */
+	public static OpponentPolicy of(GameState game) {
+		long key = game.key();
+		OpponentPolicy policy = CACHE.get(game.hash(), key);
+		if(policy == null) {
+			policy = OpponentPolicy.compute(game);
+			CACHE.put(game.hash(), key, policy);
+		}
+		return policy;
+	}
+
+	/**
+	 * Compute the distribution of the moves of the opponent: a winning move if there is one, and otherwise the moves which do not allow the player to win immediately,
+	 * weighted by their heuristic value. If every move allows the player to win, the moves allowing the fewest winning answers are equally likely.
+	 * The state is modified during the computation, but restored before returning.
+	 * @param game the current state of the game
+	 * @return the distribution of the moves of the opponent
+	 */
+	static OpponentPolicy compute(GameState game) {
+		RandomSelector rs = new RandomSelector();
+		ArrayList<Integer> listColumn = new ArrayList<Integer>();
+		ArrayList<Integer> listGameOver = new ArrayList<Integer>();
+		int minGameOver = Integer.MAX_VALUE;
+		float[] values = new float[7];
+		ProbabilisticOpponentAI.heuristicValues(game, values);
+		for(int column = 0; column < 7; column++) {
+			if(!game.isFull(column)) {
+				game.putPiece(column);
+				if(game.isGameOver()) {
+					game.undoPiece(column);
+					listColumn.clear();
+					listColumn.add(column);
+					rs = new RandomSelector();
+					rs.add(1);
+					break;
+				}
+				int nbrGameOver = 0;
+				for(int i = 0; i < 7; i++) {
+					if(!game.isFull(i)) {
+						game.putPiece(i);
+						if(game.isGameOver()) {
+							nbrGameOver++;
+						}
+						game.undoPiece(i);
+					}
+				}
+				game.undoPiece(column);
+				if(nbrGameOver == 0) {
+					rs.add(values[column]);
+					listColumn.add(column);
+				}
+				else {
+					if(minGameOver > nbrGameOver) {
+						minGameOver = nbrGameOver;
+						listGameOver.clear();
+						listGameOver.add(column);
+					}
+					else {
+						if(minGameOver == nbrGameOver) {
+							listGameOver.add(column);
+						}
+					}
+				}
+			}
+		}
+		boolean noSafeMove = listColumn.isEmpty();
+		if(noSafeMove) {
+			for(int column: listGameOver) {
+				listColumn.add(column);
+				rs.add(1);
+			}
+		}
+		int columns = 0;
+		float[] probas = new float[7];
+		int[] moves = new int[listColumn.size()];
+		for(int index = 0; index < listColumn.size(); index++) {
+			columns |= 1 << listColumn.get(index);
+			probas[listColumn.get(index)] = rs.probability(index);
+			moves[index] = listColumn.get(index);
+		}
+		rs.prepare(); // the policy is shared between threads, the draws must not modify the selector
+		return new OpponentPolicy(columns, probas, noSafeMove, moves, rs);
+	}
+
+	/**
+	 * check if the opponent may play a given column
+	 * @param column index of the column
+	 * @return true if the column is one of the moves of the distribution (even with a probability of 0)
+	 */
+	public boolean isMove(int column) {
+		return ((this.columns >> column) & 1) != 0;
+	}
+
+	/**
+	 * Returns the probability that the opponent plays a given column
+	 * @param column index of the column
+	 * @return the probability of the column, 0 if the column is not a move of the distribution
+	 */
+	public float probability(int column) {
+		return this.probas[column];
+	}
+
+	/**
+	 * Draw a move of the distribution according to the probabilities. The alias table of the distribution is built once, so each draw takes a constant time.
+	 * @param random the random generator, or null to use the generator of the current thread
+	 * @return the column drawn, -1 if the distribution has no move
+	 */
+	public int randomMove(RandomGenerator random) {
+		int index = this.selector.randomChoice(random);
+		return index < 0? -1: this.moves[index];
+	}
+
+	/**
+	 * check if all the moves of the opponent allow the player to win immediately
+	 * @return true if there is no safe move
+	 */
+	public boolean hasNoSafeMove() {
+		return this.noSafeMove;
+	}
+
+	/**
+	 * @return the number of distributions found in the cache
+	 */
+	public static long hits() {
+		return CACHE.hits.sum();
+	}
+
+	/**
+	 * @return the number of distributions which had to be computed
+	 */
+	public static long misses() {
+		return CACHE.misses.sum();
+	}
+
+	/**
+	 * @return the proportion of the distributions found in the cache
+	 */
+	public static double hitRate() {
+		long hits = OpponentPolicy.hits(), total = hits + OpponentPolicy.misses();
+		return total == 0? 0: (double) hits / total;
+	}
+
+	/**
+	 * Set associative cache of fixed capacity, using the CLOCK algorithm to evict the entries of a set. The sets are protected by a fixed number of locks.
+	 */
+	private static class ClockCache {
+		private static final int WAYS = 8;
+		private static final int LOCKS = 64;
+
+		private final long[] keys; // encoding of the states (see GameState.key()), 0 for an empty entry
+		private final OpponentPolicy[] policies;
+		private final boolean[] referenced;
+		private final int[] hands; // next entry of each set considered for eviction
+		private final Object[] locks;
+		private final int setMask;
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+
+		private ClockCache(int capacity) {
+			int sets = Integer.highestOneBit(Math.max(1, capacity / WAYS));
+			this.keys = new long[sets * WAYS];
+			this.policies = new OpponentPolicy[sets * WAYS];
+			this.referenced = new boolean[sets * WAYS];
+			this.hands = new int[sets];
+			this.setMask = capacity > 0? sets - 1: -1;
+			this.locks = new Object[LOCKS];
+			for(int i = 0; i < LOCKS; i++) {
+				this.locks[i] = new Object();
+			}
+		}
+
+		private OpponentPolicy get(long hash, long key) {
+			if(this.setMask < 0) {
+				this.misses.increment();
+				return null;
+			}
+			int set = (int) hash & this.setMask;
+			synchronized(this.locks[set % LOCKS]) {
+				for(int entry = set * WAYS; entry < (set + 1) * WAYS; entry++) {
+					if(this.keys[entry] == key) {
+						this.referenced[entry] = true;
+						this.hits.increment();
+						return this.policies[entry];
+					}
+				}
+			}
+			this.misses.increment();
+			return null;
+		}
+
+		private void put(long hash, long key, OpponentPolicy policy) {
+			if(this.setMask < 0)
+				return;
+			int set = (int) hash & this.setMask;
+			synchronized(this.locks[set % LOCKS]) {
+				for(int entry = set * WAYS; entry < (set + 1) * WAYS; entry++) {
+					if(this.keys[entry] == key)
+						return; // computed by another thread meanwhile
+				}
+				int entry = set * WAYS + this.hands[set];
+				while(this.referenced[entry]) {
+					this.referenced[entry] = false; // second chance
+					this.hands[set] = (this.hands[set] + 1) % WAYS;
+					entry = set * WAYS + this.hands[set];
+				}
+				this.keys[entry] = key;
+				this.policies[entry] = policy;
+				this.referenced[entry] = true;
+				this.hands[set] = (this.hands[set] + 1) % WAYS;
+			}
+		}
+	}
+}
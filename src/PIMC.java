@@ -0,0 +1,269 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Perfect information Monte Carlo search (PIMC), an alternative to the AND-OR search of AI for large belief states.
+ * States are drawn from the belief state according to their probability, each one is searched as a game of perfect information by a negamax with alpha-beta pruning
+ * on the bitboards of GameState, and the score of each column is the average of its scores in the samples, weighted by their probability.
+ * When the belief state has at most ai.pimc.samples states, all of them are searched with their own probability.
+ * Without deadline, the samples are searched at the depth ai.pimc.depth. With a deadline (ai.time.ms), the search starts with a few samples at a small depth,
+ * then alternately searches one more move ahead and doubles the number of samples, and plays the best column of the last iteration completed.
+ * The samples are searched in parallel on the pool of AI when it has several threads.
+ */
+public class PIMC {
+	private static final int SAMPLES = Integer.getInteger("ai.pimc.samples", 64); // largest number of samples
+	private static final int DEPTH = Integer.getInteger("ai.pimc.depth", 8); // depth of the search of each sample, in moves of both players
+	private static final long SEED = Long.getLong("ai.pimc.seed", 0);
+	private static final int FIRST_SAMPLES = 8, FIRST_DEPTH = 2; // first iteration with a deadline
+	private static final int WIN = 10000; // score of a win, minus the number of moves before it (see AI.evaluateTerminalState)
+	private static final int[] PREFERRED_ORDER = {3, 2, 4, 1, 5, 0, 6};
+	private static final int DEADLINE_CHECK = 1023; // mask of the number of nodes between two checks of the deadline
+
+	/**
+	 * Samples drawn from a belief state: distinct states with their weight
+	 */
+	private static final class Samples {
+		private final BeliefState beliefState;
+		private final boolean exhaustive; // true if the samples are all the states of the belief state
+		private final SplittableRandom random;
+		private final RandomSelector sampler; // draws the states of the belief state (see BeliefState.sampler)
+		private final List<Long> states = new ArrayList<Long>();
+		private final int[] counts = new int[SAMPLES]; // number of draws of each state, unused if the samples are exhaustive
+		private final HashMap<Long, Integer> indices = new HashMap<Long, Integer>();
+		private int draws;
+
+		private Samples(BeliefState beliefState, long seed) {
+			this.beliefState = beliefState;
+			this.exhaustive = beliefState.size() <= SAMPLES;
+			this.random = new SplittableRandom(seed);
+			this.sampler = beliefState.sampler();
+			if(this.exhaustive) {
+				for(int i = 0; i < beliefState.size(); i++) {
+					this.states.add(beliefState.state(i));
+				}
+			}
+		}
+
+		/**
+		 * Draw states until the given number of draws (nothing if the samples are exhaustive)
+		 * @param count number of draws
+		 */
+		private void draw(int count) {
+			if(this.exhaustive)
+				return;
+			for(; this.draws < count; this.draws++) {
+				long state = this.beliefState.state(this.sampler.randomChoice(this.random));
+				Integer index = this.indices.get(state);
+				if(index == null) {
+					index = this.states.size();
+					this.indices.put(state, index);
+					this.states.add(state);
+				}
+				this.counts[index]++;
+			}
+		}
+
+		/**
+		 * Returns the weight of a sample: its number of draws, or the probability of its state if the samples are exhaustive
+		 * @param i index of the sample
+		 */
+		private double weight(int i) {
+			return this.exhaustive? this.sampler.weight(i): this.counts[i];
+		}
+
+		private boolean isComplete() {
+			return this.exhaustive || this.draws >= SAMPLES;
+		}
+	}
+
+	/**
+	 * Negamax search of one state, counting its nodes
+	 */
+	private static final class Negamax {
+		private final GameState state = new GameState();
+		private final long deadline;
+		private long nodes;
+
+		private Negamax(long deadline) {
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Compute the score of each column of a state for the AI
+		 * @param key the encoding of the state, on the turn of the AI
+		 * @param depth depth of the search, in moves of both players
+		 * @return the score of each column, NaN for the full columns
+		 */
+		private float[] scores(long key, int depth) {
+			float[] scores = new float[7];
+			GameState state = this.state;
+			state.load(key);
+			for(int column = 0; column < 7; column++) {
+				scores[column] = state.isFull(column)? Float.NaN: -this.child(column, depth, -Integer.MAX_VALUE, Integer.MAX_VALUE, 0);
+			}
+			return scores;
+		}
+
+		/**
+		 * Play a column, search the resulting state and undo the move
+		 * @return the score of the resulting state for the player to play after the move
+		 */
+		private int child(int column, int depth, int alpha, int beta, int ply) {
+			GameState state = this.state;
+			state.putPiece(column);
+			int score;
+			if(state.isGameOver())
+				score = -(WIN - ply); // the player who just played won
+			else if(state.isFull())
+				score = 0;
+			else
+				score = this.negamax(depth - 1, alpha, beta, ply + 1);
+			state.undoPiece(column);
+			return score;
+		}
+
+		/**
+		 * Negamax with alpha-beta pruning
+		 * @param depth remaining depth
+		 * @param ply number of moves since the root
+		 * @return the score of the state for the player to play
+		 */
+		private int negamax(int depth, int alpha, int beta, int ply) {
+			if((++this.nodes & DEADLINE_CHECK) == 0 && this.deadline != 0 && System.nanoTime() - this.deadline > 0)
+				throw AI.SearchTimeoutException.INSTANCE;
+			GameState state = this.state;
+			if(depth == 0)
+				return state.turn()? -state.evaluation(): state.evaluation(); // the evaluation is the one of AI, from the point of view of the red player
+			int best = -Integer.MAX_VALUE;
+			for(int column: PREFERRED_ORDER) {
+				if(state.isFull(column))
+					continue;
+				int score = -this.child(column, depth, -beta, -alpha, ply);
+				if(score > best) {
+					best = score;
+					if(score > alpha) {
+						alpha = score;
+						if(alpha >= beta)
+							break;
+					}
+				}
+			}
+			return best;
+		}
+	}
+
+	/**
+	 * Select a move for the AI with PIMC. The belief state must be on the turn of the AI, and the game must not be over.
+	 * @param beliefState the current belief state
+	 * @param moves the moves available
+	 * @param deadline value of System.nanoTime() at which to stop, 0 to search ai.pimc.samples samples at the depth ai.pimc.depth
+	 * @param pool pool of threads searching the samples, or null to search them in the current thread
+	 * @param stats statistics of the search, finished with the move selected
+	 */
+	static void search(BeliefState beliefState, List<Integer> moves, long deadline, ForkJoinPool pool, SearchStats stats) {
+		int maxDepth = 42 - beliefState.played();
+		Samples samples = new Samples(beliefState, SEED);
+		List<float[]> scores = new ArrayList<float[]>(); // scores of the columns in each sample, at the current depth
+		int depth = deadline == 0? Math.min(DEPTH, maxDepth): Math.min(FIRST_DEPTH, maxDepth);
+		samples.draw(deadline == 0? SAMPLES: FIRST_SAMPLES);
+		float[] best = null; // scores of the columns at the last iteration completed
+		int bestDepth = 0, bestSamples = 0;
+		boolean widened = true;
+		while(true) {
+			try {
+				PIMC.searchSamples(samples, scores, depth, deadline, pool, stats);
+			} catch (AI.SearchTimeoutException e) {
+				break;
+			}
+			best = PIMC.average(samples, scores);
+			bestDepth = depth;
+			bestSamples = samples.draws == 0? samples.states.size(): samples.draws;
+			if(deadline == 0 || (depth == maxDepth && samples.isComplete()))
+				break;
+			// alternately search one move deeper and double the number of samples, the new samples being searched at the same depth as the others
+			if(depth < maxDepth && (samples.isComplete() || widened)) {
+				depth++;
+				scores.clear();
+				widened = false;
+			}
+			else {
+				samples.draw(Math.min(SAMPLES, 2 * samples.draws));
+				widened = true;
+			}
+		}
+
+		int bestMove = -1;
+		float bestScore = Float.NEGATIVE_INFINITY;
+		for(int move: PREFERRED_ORDER) {
+			if(moves.contains(move) && (bestMove == -1 || (best != null && best[move] > bestScore))) {
+				bestMove = move;
+				bestScore = best == null? Float.NaN: best[move];
+			}
+		}
+		AI.log("PIMC: " + bestSamples + " samples (" + samples.states.size() + " states) at depth " + bestDepth);
+		stats.finish(bestMove, bestScore, bestDepth, "pimc");
+	}
+
+	/**
+	 * Search the samples which have no scores yet, in parallel if there is a pool
+	 * @param samples the samples
+	 * @param scores the scores of the samples already searched, completed with the others
+	 */
+	private static void searchSamples(Samples samples, List<float[]> scores, int depth, long deadline, ForkJoinPool pool, SearchStats stats) {
+		int from = scores.size(), to = samples.states.size();
+		if(pool == null || pool.getParallelism() == 1 || to - from < 2) {
+			Negamax negamax = new Negamax(deadline);
+			try {
+				for(int i = from; i < to; i++) {
+					scores.add(negamax.scores(samples.states.get(i), depth));
+				}
+			} finally {
+				stats.nodes(negamax.nodes);
+			}
+			return;
+		}
+		List<ForkJoinTask<float[]>> tasks = new ArrayList<ForkJoinTask<float[]>>();
+		for(int i = from; i < to; i++) {
+			long state = samples.states.get(i);
+			tasks.add(pool.submit(() -> {
+				Negamax negamax = new Negamax(deadline);
+				try {
+					return negamax.scores(state, depth);
+				} catch (AI.SearchTimeoutException e) {
+					return null;
+				} finally {
+					stats.nodes(negamax.nodes);
+				}
+			}));
+		}
+		List<float[]> sampleScores = AI.joinAll(tasks);
+		if(sampleScores.contains(null)) {
+			throw AI.SearchTimeoutException.INSTANCE;
+		}
+		scores.addAll(sampleScores);
+	}
+
+	/**
+	 * Returns the score of each column, averaged over the samples weighted by their probability (NaN for the full columns)
+	 */
+	private static float[] average(Samples samples, List<float[]> scores) {
+		double[] sum = new double[7];
+		double total = 0;
+		for(int i = 0; i < scores.size(); i++) {
+			double weight = samples.weight(i);
+			for(int column = 0; column < 7; column++) {
+				sum[column] += weight * scores.get(i)[column];
+			}
+			total += weight;
+		}
+		float[] average = new float[7];
+		for(int column = 0; column < 7; column++) {
+			average[column] = (float) (sum[column] / total);
+		}
+		return average;
+	}
+}
@@ -0,0 +1,229 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Partially observable Monte Carlo tree search (POMCP, Silver and Veness), an alternative to the AND-OR search of AI.
+ * Each simulation draws a state of the belief state according to its probability, then follows a tree whose nodes are histories of moves of the AI and
+ * percepts: the moves are selected by UCB1, the opponent is played by ProbabilisticOpponentAI and the percept obtained after its move selects the next node.
+ * When a simulation leaves the tree, a node is added and the game is played out at random until its end.
+ * The search is anytime: it stops after a number of simulations or at a deadline, and the move of the root which was simulated the most is played.
+ * With several threads, each thread builds its own tree from its own seed (root parallelism), and the visits of the moves of the roots are summed.
+ */
+public class POMCP {
+	private static final int PLAYOUTS = Integer.getInteger("ai.pomcp.playouts", 10000); // number of simulations of a search
+	private static final long SEED = Long.getLong("ai.pomcp.seed", 0); // seed of the first tree, the other trees use the next seeds
+	private static final double EXPLORATION = 1; // constant of UCB1, the rewards being between 0 and 1
+	private static final double WIN = 1, TIE = 0.5, LOSS = 0;
+	private static final int[] PREFERRED_ORDER = {3, 2, 4, 1, 5, 0, 6}; // order in which the moves are tried first, as in AI
+	private static final int DEADLINE_CHECK = 64; // number of simulations between two checks of the deadline
+
+	/**
+	 * Node of the tree: a history of moves and percepts, shared by all the states consistent with it
+	 */
+	private static final class Node {
+		private final int[] visits = new int[7]; // number of simulations of each move
+		private final double[] rewards = new double[7]; // sum of the rewards of the simulations of each move
+		private int total; // number of simulations of the node
+		private HashMap<Long, Node> children; // indexed by percept * 8 + move, null until the first child is added
+	}
+
+	/**
+	 * Tree of one thread, with its own random generators so that a tree only depends on its seed
+	 */
+	private static final class Tree {
+		private final Node root = new Node();
+		private final SplittableRandom random;
+		private final ProbabilisticOpponentAI opponent;
+		private final GameState state = new GameState();
+		private final BeliefState beliefState; // belief state of the root
+		private final RandomSelector sampler; // draws the states of the belief state of the root, shared by the trees (see BeliefState.sampler)
+		private final long visible; // squares visible at the root
+		private int playouts;
+		private int depth; // largest number of moves of the AI in the tree
+
+		private Tree(BeliefState beliefState, RandomSelector sampler, long seed) {
+			this.random = new SplittableRandom(seed);
+			this.opponent = new ProbabilisticOpponentAI(this.random.nextLong());
+			this.beliefState = beliefState;
+			this.sampler = sampler;
+			this.visible = beliefState.visible();
+		}
+
+		/**
+		 * Run simulations until the given number or the deadline
+		 * @param playouts number of simulations
+		 * @param deadline value of System.nanoTime() at which to stop, 0 for no deadline
+		 * @param stats statistics of the search, each simulation counting as a node (not counted in the histogram of the sizes of the belief states)
+		 * @return this tree
+		 */
+		private Tree run(int playouts, long deadline, SearchStats stats) {
+			int first = this.playouts;
+			while(this.playouts < playouts) {
+				if(this.playouts % DEADLINE_CHECK == 0 && deadline != 0 && System.nanoTime() - deadline > 0)
+					break;
+				this.state.load(this.sample());
+				this.simulate(this.root, this.visible, 1);
+				this.playouts++;
+			}
+			stats.nodes(this.playouts - first);
+			return this;
+		}
+
+		/**
+		 * Draw a state of the belief state of the root according to the probabilities
+		 */
+		private long sample() {
+			return this.beliefState.state(this.sampler.randomChoice(this.random));
+		}
+
+		/**
+		 * Simulate the game from a node of the tree, in the state drawn for the simulation, and update the statistics of the nodes met
+		 * @param node the node of the history of the simulation, on the turn of the AI
+		 * @param visible the squares visible to the AI
+		 * @param depth number of moves of the AI from the root, this one included
+		 * @return the reward of the simulation
+		 */
+		private double simulate(Node node, long visible, int depth) {
+			GameState state = this.state;
+			if(state.isFull())
+				return TIE;
+			int move = POMCP.select(node, state);
+			this.depth = Math.max(this.depth, depth);
+			double reward;
+			state.putPiece(move);
+			if(state.isGameOver()) {
+				reward = WIN;
+			}
+			else if(state.isFull()) {
+				reward = TIE;
+			}
+			else {
+				long percept = BeliefState.percept(visible, state, move);
+				int opponentMove = this.opponent.decision(state);
+				state.putPiece(opponentMove);
+				if(state.isGameOver()) {
+					reward = LOSS;
+				}
+				else {
+					percept = BeliefState.percept(percept, state, opponentMove);
+					if(node.children == null) {
+						node.children = new HashMap<Long, Node>();
+					}
+					Node child = node.children.get(percept << 3 | move);
+					if(child != null) {
+						reward = this.simulate(child, percept, depth + 1);
+					}
+					else {
+						node.children.put(percept << 3 | move, new Node());
+						reward = this.rollout();
+					}
+				}
+			}
+			node.visits[move]++;
+			node.rewards[move] += reward;
+			node.total++;
+			return reward;
+		}
+
+		/**
+		 * Play the game to its end from the state of the simulation, the AI playing at random and the opponent as ProbabilisticOpponentAI
+		 * @return the reward of the end of the game
+		 */
+		private double rollout() {
+			GameState state = this.state;
+			int[] moves = new int[7];
+			while(true) {
+				int count = 0;
+				for(int column = 0; column < 7; column++) {
+					if(!state.isFull(column))
+						moves[count++] = column;
+				}
+				if(count == 0)
+					return TIE;
+				state.putPiece(moves[this.random.nextInt(count)]);
+				if(state.isGameOver())
+					return WIN;
+				if(state.isFull())
+					return TIE;
+				state.putPiece(this.opponent.decision(state));
+				if(state.isGameOver())
+					return LOSS;
+			}
+		}
+	}
+
+	/**
+	 * Select the move of a node to simulate: a move never simulated if there is one (in the preferred order), and otherwise the move maximizing UCB1
+	 */
+	private static int select(Node node, GameState state) {
+		double logTotal = Math.log(node.total);
+		int best = -1;
+		double bestValue = Double.NEGATIVE_INFINITY;
+		for(int move: PREFERRED_ORDER) {
+			if(state.isFull(move))
+				continue;
+			int visits = node.visits[move];
+			if(visits == 0)
+				return move;
+			double value = node.rewards[move] / visits + EXPLORATION * Math.sqrt(logTotal / visits);
+			if(value > bestValue) {
+				bestValue = value;
+				best = move;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Select a move for the AI with POMCP. The belief state must be on the turn of the AI, and the game must not be over.
+	 * @param beliefState the current belief state
+	 * @param moves the moves available
+	 * @param deadline value of System.nanoTime() at which to stop, 0 to run all the simulations
+	 * @param pool pool of threads running one tree each, or null to run a single tree in the current thread
+	 * @param stats statistics of the search, finished with the move selected
+	 */
+	static void search(BeliefState beliefState, List<Integer> moves, long deadline, ForkJoinPool pool, SearchStats stats) {
+		RandomSelector sampler = beliefState.sampler();
+		List<Tree> trees = new ArrayList<Tree>();
+		if(pool == null || pool.getParallelism() == 1) {
+			trees.add(new Tree(beliefState, sampler, SEED).run(PLAYOUTS, deadline, stats));
+		}
+		else {
+			int count = pool.getParallelism();
+			List<ForkJoinTask<Tree>> tasks = new ArrayList<ForkJoinTask<Tree>>();
+			for(int i = 0; i < count; i++) {
+				long seed = SEED + i;
+				int playouts = (int) ((long) PLAYOUTS * (i + 1) / count - (long) PLAYOUTS * i / count);
+				tasks.add(pool.submit(() -> new Tree(beliefState, sampler, seed).run(playouts, deadline, stats)));
+			}
+			for(ForkJoinTask<Tree> task: tasks) {
+				trees.add(task.join());
+			}
+		}
+
+		int[] visits = new int[7];
+		double[] rewards = new double[7];
+		int playouts = 0, depth = 0;
+		for(Tree tree: trees) {
+			for(int move = 0; move < 7; move++) {
+				visits[move] += tree.root.visits[move];
+				rewards[move] += tree.root.rewards[move];
+			}
+			playouts += tree.playouts;
+			depth = Math.max(depth, tree.depth);
+		}
+		int bestMove = -1;
+		for(int move: PREFERRED_ORDER) {
+			if(moves.contains(move) && (bestMove == -1 || visits[move] > visits[bestMove]
+					|| (visits[move] == visits[bestMove] && rewards[move] * visits[bestMove] > rewards[bestMove] * visits[move]))) {
+				bestMove = move;
+			}
+		}
+		float score = visits[bestMove] == 0? Float.NaN: (float) (rewards[bestMove] / visits[bestMove]);
+		stats.finish(bestMove, score, depth, "pomcp");
+	}
+}
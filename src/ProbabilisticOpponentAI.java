@@ -1,35 +1,34 @@
-import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
 
 public class ProbabilisticOpponentAI {
+	private final RandomGenerator random; // null to use the generator of the current thread
+
+	/**
+	 * Construct an opponent which draws its moves with the random generator of the current thread
+	 */
+	public ProbabilisticOpponentAI() {
+		this.random = null;
+	}
+
+	/**
+	 * Construct an opponent which draws its moves with its own generator, so the same seed gives the same moves in the same states.
+	 * Such an opponent should be used by a single thread.
+	 * @param seed the seed of the generator
+	 */
+	public ProbabilisticOpponentAI(long seed) {
+		this.random = new SplittableRandom(seed);
+	}
+
 	/**
 	 * Compute the next move of the opponent. The process is random, and the probability at use are based on the current state of the game. Note that the opponent has full access to the board.
 	 * @param game current state of the game (which is fully visible)
 	 * @return an index corresponding the column played by the opponent. If the game is full (no move available) then it return -1.
 	 */
 	public int decision(GameState game) {
-		RandomSelector rs = new RandomSelector();
-		ArrayList<Integer> listColumn = new ArrayList<Integer>();
-		for(int column = 0; column < 7; column++) {
-			if(!game.isFull(column)) {
-				GameState copy = game.copy();
-				copy.putPiece(column);
-				if(copy.isGameOver())
-					return column;
-				boolean isDeadEnd = false;
-				for(int i = 0; i < 7 && !isDeadEnd; i++) {
-					GameState copycopy = copy.copy();
-					copycopy.putPiece(i);
-					isDeadEnd = copycopy.isGameOver();
-				}
-				if(!isDeadEnd) {
-					rs.add(ProbabilisticOpponentAI.heuristicValue(game, column));
-					listColumn.add(column);
-				}
-			}
-		}
-		if(listColumn.size() > 0) {
-			//System.out.println(game.toString() + "\n" + rs.toString());
-			return listColumn.get(rs.randomChoice());
+		OpponentPolicy policy = OpponentPolicy.of(game);
+		if(!policy.hasNoSafeMove()) {
+			return policy.randomMove(this.random);
 		}
 		else {
 			for(int column = 0; column < 7; column++) {
@@ -40,80 +39,113 @@ public class ProbabilisticOpponentAI {
 		}
 	}
 	
+	// directions of the rays, as shifts in the bitboard layout of GameState
+	private static final int SOUTH = 0, WEST = 1, EAST = 2, SOUTH_WEST = 3, NORTH_EAST = 4, SOUTH_EST = 5, NORTH_WEST = 6;
+	private static final int[][] STEPS = {{-1, 0}, {0, -1}, {0, 1}, {-1, -1}, {1, 1}, {-1, 1}, {1, -1}}; // (row, column) step of each direction
+	private static final long[][] RAYS = rays(); // squares met from a square (excluded) to the edge of the board, for each direction and each square
+	private static final double[][] VERTICAL_TERMS = verticalTerms(); // term of the vertical line, indexed by number of pieces and row
+	private static final double[][] LINE_TERMS = lineTerms(); // term of the other lines, indexed by number of pieces and length
+
 	/**
-	 * Compute an heuristic value for a given move which will be used to assess the probability to choose this move
+	 * Compute an heuristic value for a given move which will be used to assess the probability to choose this move.
+	 * From the square where the piece lands, each line is followed in both directions until a red piece or the edge of the board, and the yellow pieces on the way
+	 * give the value of the line.
 	 * @param game the current state of the game
 	 * @param column the index of the column to be played
 	 * @return a value which assess the quality of the move (larger is better)
 	 */
 	public static float heuristicValue(GameState game, int column) {
-		float hValue = 0;
-		int row = 0;
-		while(game.content(row, column) != 0) {
-			row++;
-		}
-		int southPieces = 0, south = 0;
-		while(south < row && game.content(row - south - 1, column) != 2) {
-			south++;
-			if(game.content(row - south, column) == 1) {
-				southPieces++;
-			}
-		}
-		if(southPieces + 6 - row > 3) {
-			hValue += (southPieces + 1.) * (southPieces + 1.) / (southPieces + 6. - row);
-		}
-		
-		int westPieces = 0, west = 0;
-		while(west < column && game.content(row, column - west - 1) != 2) {
-			west++;
-			if(game.content(row, column - west) == 1) {
-				westPieces++;
-			}
-		}
-		int estPieces = 0, est = 0;
-		while(column + est < 6 && game.content(row, column + est + 1) != 2) {
-			est++;
-			if(game.content(row, column + est) == 1) {
-				estPieces++;
-			}
-		}
-		if(est + west > 2) {
-			hValue += (estPieces + westPieces + 1.) * (estPieces + westPieces + 1.) / (est + west + 1.);
-		}
-		int southWestPieces = 0, southWest = 0;
-		while(southWest < row && southWest < column  && game.content(row - southWest - 1, column - southWest - 1) != 2) {
-			southWest++;
-			if(game.content(row - southWest, column - southWest) == 1) {
-				southWestPieces++;
-			}
+		return ProbabilisticOpponentAI.heuristicValue(game.yellow(), game.red(), column * GameState.H1 + game.height(column));
+	}
+
+	/**
+	 * Compute the heuristic value of all the columns of a state at once (see heuristicValue(GameState, int))
+	 * @param game the current state of the game
+	 * @param values array of (at least) 7 values, filled with the value of each column, 0 for a full column
+	 */
+	public static void heuristicValues(GameState game, float[] values) {
+		long yellow = game.yellow(), red = game.red();
+		for(int column = 0; column < 7; column++) {
+			values[column] = game.isFull(column)? 0: ProbabilisticOpponentAI.heuristicValue(yellow, red, column * GameState.H1 + game.height(column));
 		}
-		int northEstPieces = 0, northEst = 0;
-		while(row + northEst < 5 && column + northEst < 6 && game.content(row + northEst + 1, column + northEst + 1) != 2) {
-			northEst++;
-			if(game.content(row + northEst, column + northEst) == 1) {
-				northEstPieces++;
+	}
+
+	/**
+	 * Compute the heuristic value of a move from the bitboards of the players. The terms are added in the same order and with the same rounding as the
+	 * square by square version, so the values are exactly the same.
+	 * @param yellow pieces with content 1
+	 * @param red pieces with content 2
+	 * @param square bit of the square where the piece lands
+	 * @return the heuristic value of the move
+	 */
+	private static float heuristicValue(long yellow, long red, int square) {
+		float hValue = 0;
+		long south = ProbabilisticOpponentAI.run(RAYS[SOUTH][square], red, false);
+		hValue += VERTICAL_TERMS[Long.bitCount(south & yellow)][square % GameState.H1];
+		hValue += ProbabilisticOpponentAI.lineTerm(ProbabilisticOpponentAI.run(RAYS[WEST][square], red, false) | ProbabilisticOpponentAI.run(RAYS[EAST][square], red, true), yellow);
+		hValue += ProbabilisticOpponentAI.lineTerm(ProbabilisticOpponentAI.run(RAYS[SOUTH_WEST][square], red, false) | ProbabilisticOpponentAI.run(RAYS[NORTH_EAST][square], red, true), yellow);
+		hValue += ProbabilisticOpponentAI.lineTerm(ProbabilisticOpponentAI.run(RAYS[NORTH_WEST][square], red, false) | ProbabilisticOpponentAI.run(RAYS[SOUTH_EST][square], red, true), yellow);
+		return hValue;
+	}
+
+	/**
+	 * Returns the squares of a ray which are before the first blocker
+	 * @param ray squares of the ray
+	 * @param blockers pieces which stop the ray
+	 * @param increasing true if the squares of the ray have increasing bits (the first blocker is then the lowest bit), false otherwise
+	 * @return the squares of the ray before the first blocker
+	 */
+	private static long run(long ray, long blockers, boolean increasing) {
+		long blocked = ray & blockers;
+		if(blocked == 0)
+			return ray;
+		if(increasing)
+			return ray & (Long.lowestOneBit(blocked) - 1);
+		return ray & -(Long.highestOneBit(blocked) << 1);
+	}
+
+	private static double lineTerm(long line, long yellow) {
+		return LINE_TERMS[Long.bitCount(line & yellow)][Long.bitCount(line)];
+	}
+
+	private static long[][] rays() {
+		long[][] rays = new long[STEPS.length][GameState.WIDTH * GameState.H1];
+		for(int direction = 0; direction < STEPS.length; direction++) {
+			for(int column = 0; column < GameState.WIDTH; column++) {
+				for(int row = 0; row < GameState.HEIGHT; row++) {
+					int r = row + STEPS[direction][0], c = column + STEPS[direction][1];
+					while(r >= 0 && r < GameState.HEIGHT && c >= 0 && c < GameState.WIDTH) {
+						rays[direction][column * GameState.H1 + row] |= 1L << (c * GameState.H1 + r);
+						r += STEPS[direction][0];
+						c += STEPS[direction][1];
+					}
+				}
 			}
 		}
-		if(southWest + northEst > 2) {
-			hValue += (southWestPieces + northEstPieces + 1.) * (southWestPieces + northEstPieces + 1.) / (southWest + northEst + 1.);
-		}
-		int southEstPieces = 0, southEst = 0;
-		while(southEst < row && column + southEst < 6 && game.content(row - southEst - 1, column + southEst + 1) != 2) {
-			southEst++;
-			if(game.content(row - southEst, column + southEst) == 1) {
-				southEstPieces++;
+		return rays;
+	}
+
+	private static double[][] verticalTerms() {
+		double[][] terms = new double[GameState.HEIGHT + 1][GameState.H1];
+		for(int pieces = 0; pieces <= GameState.HEIGHT; pieces++) {
+			for(int row = 0; row < GameState.H1; row++) {
+				if(pieces + 6 - row > 3) {
+					terms[pieces][row] = (pieces + 1.) * (pieces + 1.) / (pieces + 6. - row);
+				}
 			}
 		}
-		int northWestPieces = 0, northWest = 0;
-		while(row + northWest < 5 && northWest < column  && game.content(row + northWest + 1, column - northWest - 1) != 2) {
-			northWest++;
-			if(game.content(row + northWest, column - northWest) == 1) {
-				northWestPieces++;
+		return terms;
+	}
+
+	private static double[][] lineTerms() {
+		double[][] terms = new double[GameState.WIDTH][GameState.WIDTH];
+		for(int pieces = 0; pieces < GameState.WIDTH; pieces++) {
+			for(int length = pieces; length < GameState.WIDTH; length++) {
+				if(length > 2) {
+					terms[pieces][length] = (pieces + 1.) * (pieces + 1.) / (length + 1.);
+				}
 			}
 		}
-		if(northWest + southEst > 2) {
-			hValue += (northWestPieces + southEstPieces + 1.) * (northWestPieces + southEstPieces + 1.) / (northWest + southEst + 1.);
-		}
-		return hValue;
+		return terms;
 	}
 }
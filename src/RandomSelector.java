@@ -1,38 +1,151 @@
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
 
+/**
+ * Select an index at random, each index being chosen with a probability proportional to its weight.
+ * The draws use the alias method (Walker, Vose): a table built once in linear time allows each draw in constant time.
+ */
 public class RandomSelector {
-	public ArrayList<Float> proba;
+	private float[] proba; // weights of the indices, followed by unused space
+	private int size;
 	public float somme = 0;
-	
+	private final RandomGenerator random; // null to use the generator of the current thread
+	private double[] threshold; // alias table, null if it has to be built again
+	private int[] alias;
+
+	/**
+	 * Construct an empty selector which draws with the random generator of the current thread
+	 */
 	public RandomSelector() {
-		this.proba = new ArrayList<Float>();
+		this(null);
+	}
+
+	/**
+	 * Construct an empty selector which draws with a given random generator (for instance a SplittableRandom created from a seed, to get reproducible draws).
+	 * The generator is not thread safe in general, so a selector using one should not be shared between threads.
+	 * @param random the random generator, or null to use the generator of the current thread
+	 */
+	public RandomSelector(RandomGenerator random) {
+		this.proba = new float[8];
+		this.random = random;
 	}
-	
+
 	public void add(float i) {
-		this.proba.add(i);
+		if(this.size == this.proba.length) {
+			this.proba = Arrays.copyOf(this.proba, 2 * this.size);
+		}
+		this.proba[this.size++] = i;
 		this.somme += i;
+		this.threshold = null;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the weight of an index, as given to add
+	 * @param i the index
+	 * @return the weight of the index
+	 */
+	public float weight(int i) {
+		return this.proba[i];
 	}
-	
+
 	public int randomChoice() {
-		double rand = Math.random() * this.somme;
-		float cumul = 0;
-		for(int j = 0; j < this.proba.size(); j++) {
-			cumul += this.proba.get(j).floatValue();
-			if(rand < cumul) {
-				return j;
-			}
+		return this.randomChoice(this.random);
+	}
+
+	/**
+	 * Draw an index with a given random generator. Once the alias table is built (see prepare), the selector is not modified by the draws,
+	 * so it can be shared by several threads drawing with their own generators as long as no weight is added.
+	 * @param random the random generator, or null to use the generator of the current thread
+	 * @return the index drawn, or size() - 1 if the sum of the weights is not positive
+	 */
+	public int randomChoice(RandomGenerator random) {
+		if(this.size == 0 || this.somme <= 0) {
+			return this.size - 1;
+		}
+		this.prepare();
+		if(random == null) {
+			random = ThreadLocalRandom.current();
 		}
-		return this.proba.size() - 1;
+		int index = random.nextInt(this.size);
+		return random.nextDouble() < this.threshold[index]? index: this.alias[index];
 	}
-	
+
 	public float probability(int i) {
-		return this.proba.get(i) / this.somme;
+		return this.proba[i] / this.somme;
 	}
-	
+
+	/**
+	 * Build the alias table if a weight was added since the last draw, so that the next draws do not modify the selector
+	 */
+	public void prepare() {
+		if(this.threshold == null) {
+			this.buildAliasTable();
+		}
+	}
+
+	/**
+	 * Build the alias table (Vose's algorithm): each index gets a threshold and an alias, such that drawing an index uniformly and keeping it if a uniform number
+	 * is below its threshold (taking its alias otherwise) gives each index with a probability proportional to its weight.
+	 */
+	private void buildAliasTable() {
+		int n = this.size;
+		double[] threshold = new double[n];
+		int[] alias = new int[n];
+		double[] scaled = new double[n];
+		int[] small = new int[n], large = new int[n];
+		int nbSmall = 0, nbLarge = 0, heaviest = 0;
+		double total = 0;
+		for(int i = 0; i < n; i++) {
+			total += this.proba[i];
+		}
+		for(int i = 0; i < n; i++) {
+			scaled[i] = this.proba[i] * n / total;
+			if(scaled[i] < 1) {
+				small[nbSmall++] = i;
+			}
+			else {
+				large[nbLarge++] = i;
+			}
+			if(this.proba[i] > this.proba[heaviest]) {
+				heaviest = i;
+			}
+		}
+		while(nbSmall > 0 && nbLarge > 0) {
+			int less = small[--nbSmall], more = large[--nbLarge];
+			threshold[less] = scaled[less];
+			alias[less] = more;
+			scaled[more] = scaled[more] + scaled[less] - 1;
+			if(scaled[more] < 1) {
+				small[nbSmall++] = more;
+			}
+			else {
+				large[nbLarge++] = more;
+			}
+		}
+		// the remaining indices have a scaled weight of 1 up to rounding errors
+		while(nbLarge > 0) {
+			int index = large[--nbLarge];
+			threshold[index] = 1;
+			alias[index] = index;
+		}
+		while(nbSmall > 0) {
+			int index = small[--nbSmall];
+			threshold[index] = this.proba[index] > 0? 1: 0;
+			alias[index] = this.proba[index] > 0? index: heaviest; // an index of weight 0 must never be drawn
+		}
+		this.alias = alias;
+		this.threshold = threshold;
+	}
+
 	public String toString() {
 		String s = "";
-		for(float f: this.proba) {
-			s += f + " ";
+		for(int i = 0; i < this.size; i++) {
+			s += this.proba[i] + " ";
 		}
 		return s;
 	}
@@ -0,0 +1,299 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Counters of a search of AI.search: nodes visited, use of the transposition table, cutoffs, and sizes of the belief states met.
+ * The counters may be updated by several threads (parallel search). When the search is over, the statistics are also recorded as a JFR event (connect4.Search),
+ * so they can be correlated with the other events of a recording (for instance the pauses of the garbage collector).
+ */
+public class SearchStats {
+	static final int BUCKETS = 20; // belief sizes are grouped by powers of 2: bucket i counts the sizes in [2^i, 2^(i+1)), the last one also counts the larger sizes
+
+	private final int rootSize; // number of states of the belief state searched
+	private final int played;
+	private final long start;
+	private final LongAdder nodes = new LongAdder();
+	private final LongAdder tableProbes = new LongAdder();
+	private final LongAdder tableHits = new LongAdder(); // entries found, deep enough or not
+	private final LongAdder tableCutoffs = new LongAdder(); // nodes whose value came from the table
+	private final LongAdder cutoffs = new LongAdder(); // alpha-beta cutoffs
+	private final LongAdder predictions = new LongAdder();
+	private final LongAdder predictedStates = new LongAdder();
+	private final LongAdder prunes = new LongAdder(); // belief states only evaluated or reduced by the probability mass pruning
+	private final DoubleAdder prunedMass = new DoubleAdder();
+	private final LongAccumulator maxBeliefSize = new LongAccumulator(Math::max, 0);
+	private final AtomicLongArray beliefSizes = new AtomicLongArray(BUCKETS); // histogram of the sizes of the belief states of the nodes
+	private int move = -1;
+	private float score = Float.NaN;
+	private float scoreError;
+	private int depth;
+	private String reason = "";
+	private long nanos;
+	private final SearchEvent event = new SearchEvent();
+
+	/**
+	 * JFR event recorded at the end of each search
+	 */
+	@Name("connect4.Search")
+	@Label("Search")
+	@Category("Connect 4")
+	@Description("Search of the next move of the AI")
+	static class SearchEvent extends Event {
+		@Label("Move")
+		int move;
+		@Label("Score")
+		float score;
+		@Label("Depth")
+		int depth;
+		@Label("Reason")
+		String reason;
+		@Label("Pieces Played")
+		int played;
+		@Label("Belief State Size")
+		int rootSize;
+		@Label("Nodes")
+		long nodes;
+		@Label("Table Hit Rate")
+		double tableHitRate;
+		@Label("Cutoffs")
+		long cutoffs;
+		@Label("Predicted States")
+		long predictedStates;
+		@Label("Largest Belief State")
+		long maxBeliefSize;
+		@Label("Pruned Probability Mass")
+		double prunedMass;
+		@Label("Score Error Bound")
+		float scoreError;
+	}
+
+	SearchStats(BeliefState beliefState) {
+		this.rootSize = beliefState.size();
+		this.played = beliefState.played();
+		this.start = System.nanoTime();
+		this.event.begin();
+	}
+
+	/**
+	 * Record a node of the search
+	 * @param size number of states of the belief state of the node
+	 */
+	void node(int size) {
+		this.nodes.increment();
+		this.beliefSizes.incrementAndGet(Math.min(BUCKETS - 1, 31 - Integer.numberOfLeadingZeros(Math.max(1, size))));
+		this.maxBeliefSize.accumulate(size);
+	}
+
+	/**
+	 * Record nodes of a search of a single state of the game (see PIMC) or simulations (see POMCP), which are not counted in the histogram of the sizes of the belief states
+	 * @param count number of nodes
+	 */
+	void nodes(long count) {
+		this.nodes.add(count);
+	}
+
+	/**
+	 * Record a probe of the transposition table
+	 * @param hit true if an entry was found for the state
+	 * @param cutoff true if the value of the entry was used as the value of the node
+	 */
+	void probe(boolean hit, boolean cutoff) {
+		this.tableProbes.increment();
+		if(hit)
+			this.tableHits.increment();
+		if(cutoff)
+			this.tableCutoffs.increment();
+	}
+
+	void cutoff() {
+		this.cutoffs.increment();
+	}
+
+	/**
+	 * Record a prediction of the move of the opponent
+	 * @param states number of states of all the results
+	 */
+	void prediction(int states) {
+		this.predictions.increment();
+		this.predictedStates.add(states);
+	}
+
+	/**
+	 * Record a belief state only evaluated, or some states removed from a belief state, by the probability mass pruning
+	 * @param mass probability of the belief state or of the states removed, relative to the belief state searched
+	 */
+	void prune(double mass) {
+		this.prunes.increment();
+		this.prunedMass.add(mass);
+	}
+
+	/**
+	 * Record the bound of the error of the probability mass pruning on the score of the move selected (see AI.andOrSearch), before finish
+	 * @param error the bound, in the unit of the score
+	 */
+	void scoreError(float error) {
+		this.scoreError = error;
+	}
+
+	/**
+	 * Record the result of the search (once all the threads are done), and commit the JFR event
+	 * @param move the move selected
+	 * @param score the score of the move
+	 * @param depth the depth of the last iteration completed, 0 if no search was needed
+	 * @param reason how the move was selected
+	 */
+	void finish(int move, float score, int depth, String reason) {
+		this.nanos = System.nanoTime() - this.start;
+		this.move = move;
+		this.score = score;
+		this.depth = depth;
+		this.reason = reason;
+		SearchEvent event = this.event;
+		event.end();
+		if(event.shouldCommit()) {
+			event.move = move;
+			event.score = score;
+			event.depth = depth;
+			event.reason = reason;
+			event.played = this.played;
+			event.rootSize = this.rootSize;
+			event.nodes = this.nodes();
+			event.tableHitRate = this.tableHitRate();
+			event.cutoffs = this.cutoffs();
+			event.predictedStates = this.predictedStates();
+			event.maxBeliefSize = this.maxBeliefSize();
+			event.prunedMass = this.prunedMass();
+			event.scoreError = this.scoreError;
+			event.commit();
+		}
+	}
+
+	public int move() {
+		return this.move;
+	}
+
+	public float score() {
+		return this.score;
+	}
+
+	public int depth() {
+		return this.depth;
+	}
+
+	/**
+	 * @return how the move was selected: "book", "win", "threat", "search", "pomcp", "pimc" or "fallback"
+	 */
+	public String reason() {
+		return this.reason;
+	}
+
+	/**
+	 * @return the duration of the search in nanoseconds
+	 */
+	public long nanos() {
+		return this.nanos;
+	}
+
+	public int rootSize() {
+		return this.rootSize;
+	}
+
+	public long nodes() {
+		return this.nodes.sum();
+	}
+
+	/**
+	 * @return the number of nodes per second
+	 */
+	public double nodesPerSecond() {
+		return this.nanos == 0? 0: this.nodes() * 1e9 / this.nanos;
+	}
+
+	public long tableProbes() {
+		return this.tableProbes.sum();
+	}
+
+	public long tableHits() {
+		return this.tableHits.sum();
+	}
+
+	public long tableCutoffs() {
+		return this.tableCutoffs.sum();
+	}
+
+	/**
+	 * @return the proportion of the probes of the transposition table which found an entry
+	 */
+	public double tableHitRate() {
+		long probes = this.tableProbes();
+		return probes == 0? 0: (double) this.tableHits() / probes;
+	}
+
+	public long cutoffs() {
+		return this.cutoffs.sum();
+	}
+
+	public long predictions() {
+		return this.predictions.sum();
+	}
+
+	public long predictedStates() {
+		return this.predictedStates.sum();
+	}
+
+	public long prunes() {
+		return this.prunes.sum();
+	}
+
+	/**
+	 * Returns the volume of the probability mass pruning: the total probability of the belief states only evaluated and of the states removed, each one counted at each visit
+	 * (the alternatives of the AI and the iterations of the iterative deepening being summed). It is not a bound of the error of the score, see scoreError.
+	 * @return the probability mass pruned, 0 without pruning
+	 */
+	public double prunedMass() {
+		return this.prunedMass.sum();
+	}
+
+	/**
+	 * Returns the bound of the error of the probability mass pruning on the score of the move selected, in the last iteration completed:
+	 * a search without pruning at the same depth scores that move at most this far from the score found (see AI.andOrSearch).
+	 * @return the bound, 0 without pruning or without search
+	 */
+	public float scoreError() {
+		return this.scoreError;
+	}
+
+	public long maxBeliefSize() {
+		return this.maxBeliefSize.get();
+	}
+
+	/**
+	 * Returns the number of nodes whose belief state has a size in [2^bucket, 2^(bucket+1)) (or larger for the last bucket)
+	 * @param bucket index of the bucket, between 0 and BUCKETS - 1
+	 * @return the number of nodes
+	 */
+	public long beliefSizeCount(int bucket) {
+		return this.beliefSizes.get(bucket);
+	}
+
+	public String toString() {
+		StringBuilder histogram = new StringBuilder();
+		for(int bucket = 0; bucket < BUCKETS; bucket++) {
+			long count = this.beliefSizeCount(bucket);
+			if(count != 0) {
+				histogram.append(" ").append(1 << bucket).append(":").append(count);
+			}
+		}
+		return String.format("move %d (%s) score %s depth %d in %.1f ms: %d nodes (%.0f/s), table hit rate %.3f (%d cutoffs), %d alpha-beta cutoffs, %d predictions (%d states), %d prunes (mass %.2e, score error %.3g), belief size %d, largest %d, histogram%s",
+				this.move, this.reason, this.score, this.depth, this.nanos / 1e6, this.nodes(), this.nodesPerSecond(), this.tableHitRate(), this.tableCutoffs(),
+				this.cutoffs(), this.predictions(), this.predictedStates(), this.prunes(), this.prunedMass(), this.scoreError, this.rootSize, this.maxBeliefSize(), histogram);
+	}
+}
@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Play games of the AI against the probabilistic opponent without any display, several games at once, and report the results and the time spent by the AI.
+ * Usage: java Tournament [number of games] [number of threads] [seed]
+ * The search is configured with the system properties read by AI (ai.engine, ai.depth, ai.time.ms, ai.threads, ...). The messages of the AI are disabled unless ai.verbose is set.
+ * Each game uses its own opponent seeded with seed + index of the game, but the games share the transposition table of the AI,
+ * so a game may not be exactly the same when it is played alone.
+ */
+public class Tournament {
+	private static final int WIN = 0, TIE = 1, LOSS = 2;
+
+	/**
+	 * Result of one game
+	 */
+	private static class GameResult {
+		private int outcome; // WIN, TIE or LOSS for the AI
+		private int turns; // number of moves of the AI
+		private long[] latencies = new long[21]; // time spent by the AI on each move, in nanoseconds
+		private int peakBeliefSize; // largest number of states of the belief state during the game
+	}
+
+	public static void main(String[] args) throws InterruptedException, ExecutionException {
+		int games = args.length > 0? Integer.parseInt(args[0]): 100;
+		int threads = args.length > 1? Integer.parseInt(args[1]): Runtime.getRuntime().availableProcessors();
+		long seed = args.length > 2? Long.parseLong(args[2]): 0;
+		if(System.getProperty("ai.verbose") == null) {
+			AI.setVerbose(false);
+		}
+		System.out.println("Playing " + games + " games on " + threads + " threads (seed " + seed + ")");
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ExecutorCompletionService<GameResult> completion = new ExecutorCompletionService<GameResult>(executor);
+		for(int i = 0; i < games; i++) {
+			long gameSeed = seed + i;
+			completion.submit(() -> Tournament.play(gameSeed));
+		}
+		long start = System.nanoTime(), startNodes = AI.nodeCount();
+		int[] outcomes = new int[3];
+		int peakBeliefSize = 0;
+		long turns = 0;
+		List<long[]> latencies = new ArrayList<long[]>();
+		int step = Math.max(1, games / 20);
+		try {
+			for(int i = 1; i <= games; i++) {
+				GameResult result = completion.take().get();
+				outcomes[result.outcome]++;
+				turns += result.turns;
+				latencies.add(Arrays.copyOf(result.latencies, result.turns));
+				peakBeliefSize = Math.max(peakBeliefSize, result.peakBeliefSize);
+				if(i % step == 0 || i == games) {
+					System.out.println(i + " games, Win: " + outcomes[WIN] + " Ties: " + outcomes[TIE] + " Loose: " + outcomes[LOSS]);
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long nodes = AI.nodeCount() - startNodes;
+
+		long[] all = new long[(int) turns];
+		int index = 0;
+		for(long[] game: latencies) {
+			System.arraycopy(game, 0, all, index, game.length);
+			index += game.length;
+		}
+		Arrays.sort(all);
+		System.out.printf("Win: %d Ties: %d Loose: %d (win rate %.3f)%n", outcomes[WIN], outcomes[TIE], outcomes[LOSS], (double) outcomes[WIN] / games);
+		System.out.printf("Moves: %d, average number of turns: %.2f%n", turns, (double) turns / games);
+		System.out.printf("Move time (ms): mean %.2f p50 %.2f p95 %.2f p99 %.2f max %.2f%n", Tournament.mean(all) / 1e6, Tournament.percentile(all, 0.50) / 1e6,
+				Tournament.percentile(all, 0.95) / 1e6, Tournament.percentile(all, 0.99) / 1e6, all.length == 0? 0: all[all.length - 1] / 1e6);
+		System.out.printf("Nodes searched: %d (%.0f per second), peak belief state size: %d%n", nodes, nodes / seconds, peakBeliefSize);
+		System.out.printf("Policy cache hit rate: %.3f, total time: %.1f s%n", OpponentPolicy.hitRate(), seconds);
+	}
+
+	/**
+	 * Play a game between the AI (red, playing first) and the probabilistic opponent
+	 * @param seed seed of the opponent
+	 * @return the result of the game
+	 */
+	private static GameResult play(long seed) {
+		GameDisplay state = new GameDisplay();
+		BeliefState beliefState = new BeliefState();
+		beliefState.add(state.getState().copy());
+		ProbabilisticOpponentAI opponent = new ProbabilisticOpponentAI(seed);
+		GameResult result = new GameResult();
+		result.peakBeliefSize = beliefState.size();
+		while(!state.getGameOver()) {
+			long time = System.nanoTime();
+			int aiPlay = 1 + AI.findNextMove(beliefState);
+			time = System.nanoTime() - time;
+			if(!beliefState.getMoves().contains(aiPlay - 1)) {
+				throw new IllegalStateException("the AI played the column " + aiPlay + " which is full");
+			}
+			if(result.turns == result.latencies.length) {
+				result.latencies = Arrays.copyOf(result.latencies, 2 * result.turns);
+			}
+			result.latencies[result.turns++] = time;
+			state.move(aiPlay);
+			beliefState.setStates(BeliefState.filter(beliefState.putPiecePlayer(aiPlay - 1), state.getState()));
+			result.peakBeliefSize = Math.max(result.peakBeliefSize, beliefState.size());
+			if(!state.getGameOver()) {
+				state.move(1 + opponent.decision(state.getState()));
+				beliefState.setStates(BeliefState.filter(beliefState.predict(), state.getState()));
+				result.peakBeliefSize = Math.max(result.peakBeliefSize, beliefState.size());
+			}
+		}
+		result.outcome = state.getRedWins()? WIN: state.getYellowWins()? LOSS: TIE;
+		return result;
+	}
+
+	private static double mean(long[] values) {
+		double sum = 0;
+		for(long value: values) {
+			sum += value;
+		}
+		return values.length == 0? 0: sum / values.length;
+	}
+
+	/**
+	 * Returns a percentile of sorted values (nearest rank)
+	 * @param sorted values sorted in increasing order
+	 * @param p the percentile, between 0 and 1
+	 * @return the value of the percentile, 0 if there are no values
+	 */
+	private static long percentile(long[] sorted, double p) {
+		if(sorted.length == 0)
+			return 0;
+		int rank = (int) Math.ceil(p * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+}